@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2017 Peter Gregus for GravityBox Project (C3C076@xda)
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ceco.marshmallow.gravitybox;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+
+/*
+ * Content hashes of backed up files keyed by path relative to backup folder.
+ * Each line holds: path|size|lastModified|sha1
+ * where size and lastModified describe the file the copy was made from.
+ */
+public class BackupManifest {
+    public static class Entry {
+        public final long size;
+        public final long lastModified;
+        public final String hash;
+
+        public Entry(long size, long lastModified, String hash) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.hash = hash;
+        }
+    }
+
+    private File mFile;
+    private Map<String, Entry> mEntries = new HashMap<>();
+
+    public BackupManifest(File file) {
+        mFile = file;
+    }
+
+    public synchronized void load() {
+        mEntries.clear();
+        if (!mFile.canRead()) return;
+
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new FileReader(mFile));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] parts = line.split("\\|");
+                if (parts.length != 4) continue;
+                try {
+                    mEntries.put(parts[0], new Entry(Long.valueOf(parts[1]),
+                            Long.valueOf(parts[2]), parts[3]));
+                } catch (NumberFormatException nfe) { }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            mEntries.clear();
+        } finally {
+            if (reader != null) {
+                try { reader.close(); } catch (IOException e) { }
+            }
+        }
+    }
+
+    public synchronized void save() throws IOException {
+        FileWriter writer = new FileWriter(mFile);
+        try {
+            for (Map.Entry<String, Entry> e : mEntries.entrySet()) {
+                writer.write(e.getKey() + "|" + e.getValue().size + "|" +
+                        e.getValue().lastModified + "|" + e.getValue().hash + "\n");
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    public synchronized Entry get(String path) {
+        return mEntries.get(path);
+    }
+
+    public synchronized void put(String path, Entry entry) {
+        mEntries.put(path, entry);
+    }
+
+    public synchronized Map<String, Entry> getEntries() {
+        return new HashMap<>(mEntries);
+    }
+
+    public static String hashFile(File file) throws IOException {
+        InputStream input = new DigestInputStream(new FileInputStream(file), createDigest());
+        try {
+            byte[] buf = new byte[8192];
+            while (input.read(buf) > 0);
+            return toHex(((DigestInputStream) input).getMessageDigest().digest());
+        } finally {
+            input.close();
+        }
+    }
+
+    // copies file and returns hash of copied content computed in the same pass
+    public static String copyFile(File source, File dest) throws IOException {
+        MessageDigest digest = createDigest();
+        InputStream input = null;
+        OutputStream output = null;
+        try {
+            input = new DigestInputStream(new FileInputStream(source), digest);
+            output = new FileOutputStream(dest);
+            byte[] buf = new byte[8192];
+            int bytesRead;
+            while ((bytesRead = input.read(buf)) > 0) {
+                output.write(buf, 0, bytesRead);
+            }
+        } finally {
+            if (input != null) input.close();
+            if (output != null) output.close();
+        }
+        return toHex(digest.digest());
+    }
+
+    private static MessageDigest createDigest() throws IOException {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16));
+            sb.append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
+    }
+}
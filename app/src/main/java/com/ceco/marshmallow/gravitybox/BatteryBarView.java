@@ -48,6 +48,7 @@ import android.widget.RelativeLayout;
 
 public class BatteryBarView extends View implements IconManagerListener, 
                                                     BroadcastSubReceiver,
+                                                    BroadcastSubReceiver.ActionFilter,
                                                     BatteryStatusListener,
                                                     ProgressBarController.ProgressStateListener,
                                                     StatusBarStateChangedListener {
@@ -292,6 +293,13 @@ public class BatteryBarView extends View implements IconManagerListener,
         }
     }
 
+    @Override
+    public String[] getBroadcastActions() {
+        return new String[] {
+            GravityBoxSettings.ACTION_PREF_BATTERY_BAR_CHANGED
+        };
+    }
+
     @Override
     public void onBroadcastReceived(Context context, Intent intent) {
         if (intent.getAction().equals(GravityBoxSettings.ACTION_PREF_BATTERY_BAR_CHANGED)) {
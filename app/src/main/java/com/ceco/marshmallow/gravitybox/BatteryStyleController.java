@@ -35,7 +35,7 @@ import de.robv.android.xposed.XSharedPreferences;
 import de.robv.android.xposed.XposedBridge;
 import de.robv.android.xposed.XposedHelpers;
 
-public class BatteryStyleController implements BroadcastSubReceiver {
+public class BatteryStyleController implements BroadcastSubReceiver, BroadcastSubReceiver.ActionFilter {
     private static final String TAG = "GB:BatteryStyleController";
     public static final String PACKAGE_NAME = "com.android.systemui";
     public static final String CLASS_BATTERY_CONTROLLER = 
@@ -309,6 +309,18 @@ public class BatteryStyleController implements BroadcastSubReceiver {
         return mContainerType;
     }
 
+    @Override
+    public String[] getBroadcastActions() {
+        return new String[] {
+            GravityBoxSettings.ACTION_PREF_BATTERY_STYLE_CHANGED,
+            GravityBoxSettings.ACTION_PREF_BATTERY_PERCENT_TEXT_CHANGED,
+            GravityBoxSettings.ACTION_PREF_BATTERY_PERCENT_TEXT_SIZE_CHANGED,
+            GravityBoxSettings.ACTION_PREF_BATTERY_PERCENT_TEXT_STYLE_CHANGED,
+            GravityBoxSettings.ACTION_BATTERY_SAVER_CHANGED,
+            ACTION_MTK_BATTERY_PERCENTAGE_SWITCH
+        };
+    }
+
     @Override
     public void onBroadcastReceived(Context context, Intent intent) {
         String action = intent.getAction();
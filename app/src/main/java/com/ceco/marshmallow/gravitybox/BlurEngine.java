@@ -0,0 +1,309 @@
+/*
+ * Copyright (C) 2017 Peter Gregus for GravityBox Project (C3C076@xda)
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ceco.marshmallow.gravitybox;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.os.SystemClock;
+import android.renderscript.Allocation;
+import android.renderscript.Element;
+import android.renderscript.RenderScript;
+import android.renderscript.ScriptIntrinsicBlur;
+import android.renderscript.Type;
+import android.util.Log;
+
+/*
+ * Bitmap blur keeping RenderScript context, intrinsic and allocations
+ * alive between calls. Allocations are recreated only when bitmap size changes.
+ * Radius beyond what the intrinsic supports is handled by blurring downscaled
+ * bitmap and scaling the result back. Pure Java stack blur is used when
+ * RenderScript is not available.
+ */
+public class BlurEngine {
+    private static final String TAG = "GB:BlurEngine";
+    private static final boolean DEBUG = false;
+    public static final float MAX_RS_RADIUS = 25f;
+
+    private static BlurEngine sInstance;
+
+    private RenderScript mRs;
+    private ScriptIntrinsicBlur mScript;
+    private Allocation mInput;
+    private Allocation mOutput;
+    private int[] mPixels = new int[0];
+
+    public static synchronized BlurEngine getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new BlurEngine(context);
+        }
+        return sInstance;
+    }
+
+    private BlurEngine(Context context) {
+        try {
+            mRs = RenderScript.create(context.getApplicationContext() != null ?
+                    context.getApplicationContext() : context);
+            mScript = ScriptIntrinsicBlur.create(mRs, Element.U8_4(mRs));
+        } catch (Throwable t) {
+            Log.e(TAG, "RenderScript not available, using Java blur: " + t.getMessage());
+            mRs = null;
+            mScript = null;
+        }
+    }
+
+    public synchronized Bitmap blur(Bitmap src, float radius) {
+        final long startTime = DEBUG ? SystemClock.elapsedRealtime() : 0;
+        Bitmap out = blur(src, radius, mRs != null, 1f);
+        if (DEBUG) {
+            Log.d(TAG, "blur: " + src.getWidth() + "x" + src.getHeight() + "; radius=" + radius +
+                    "; took " + (SystemClock.elapsedRealtime() - startTime) + "ms");
+            logBenchmark(src, radius);
+        }
+        return out;
+    }
+
+    private Bitmap blur(Bitmap src, float radius, boolean useRs, float maxScale) {
+        radius = Math.max(radius, 0);
+        final float scale = Math.min(maxScale,
+                radius > MAX_RS_RADIUS ? MAX_RS_RADIUS / radius : 1f);
+        final int width = src.getWidth();
+        final int height = src.getHeight();
+
+        Bitmap input = src;
+        if (scale < 1f) {
+            input = Bitmap.createScaledBitmap(src, Math.max(1, Math.round(width * scale)),
+                    Math.max(1, Math.round(height * scale)), true);
+        }
+        if (input.getConfig() != Bitmap.Config.ARGB_8888) {
+            Bitmap tmp = input.copy(Bitmap.Config.ARGB_8888, false);
+            if (input != src) input.recycle();
+            input = tmp;
+        }
+
+        Bitmap out = null;
+        if (useRs) {
+            try {
+                out = blurRenderScript(input, Math.min(radius * scale, MAX_RS_RADIUS));
+            } catch (Throwable t) {
+                Log.e(TAG, "RenderScript blur failed, using Java blur: " + t.getMessage());
+            }
+        }
+        if (out == null) {
+            out = blurJava(input, Math.round(radius * scale));
+        }
+        if (input != src) {
+            input.recycle();
+        }
+
+        if (out.getWidth() != width || out.getHeight() != height) {
+            Bitmap scaled = Bitmap.createScaledBitmap(out, width, height, true);
+            out.recycle();
+            out = scaled;
+        }
+        return out;
+    }
+
+    private Bitmap blurRenderScript(Bitmap input, float radius) {
+        final int width = input.getWidth();
+        final int height = input.getHeight();
+        if (radius <= 0) {
+            return input.copy(Bitmap.Config.ARGB_8888, true);
+        }
+        Bitmap out = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+
+        if (mInput == null || mInput.getType().getX() != width ||
+                mInput.getType().getY() != height) {
+            releaseAllocations();
+            Type type = Type.createXY(mRs, Element.U8_4(mRs), width, height);
+            mInput = Allocation.createTyped(mRs, type, Allocation.USAGE_SCRIPT);
+            mOutput = Allocation.createTyped(mRs, type, Allocation.USAGE_SCRIPT);
+        }
+
+        mInput.copyFrom(input);
+        mScript.setInput(mInput);
+        mScript.setRadius(radius);
+        mScript.forEach(mOutput);
+        mOutput.copyTo(out);
+        return out;
+    }
+
+    private void releaseAllocations() {
+        if (mInput != null) {
+            mInput.destroy();
+            mInput = null;
+        }
+        if (mOutput != null) {
+            mOutput.destroy();
+            mOutput = null;
+        }
+    }
+
+    private Bitmap blurJava(Bitmap input, int radius) {
+        final int width = input.getWidth();
+        final int height = input.getHeight();
+        if (mPixels.length < width * height) {
+            mPixels = new int[width * height];
+        }
+        input.getPixels(mPixels, 0, width, 0, 0, width, height);
+        if (radius > 0) {
+            stackBlur(mPixels, width, height, radius);
+        }
+        Bitmap out = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        out.setPixels(mPixels, 0, width, 0, 0, width, height);
+        return out;
+    }
+
+    // Stack blur algorithm by Mario Klingemann, alpha channel is kept unchanged
+    private static void stackBlur(int[] pix, int w, int h, int radius) {
+        final int wm = w - 1;
+        final int hm = h - 1;
+        final int wh = w * h;
+        final int div = radius + radius + 1;
+        final int r1 = radius + 1;
+
+        int[] r = new int[wh];
+        int[] g = new int[wh];
+        int[] b = new int[wh];
+        int[] vmin = new int[Math.max(w, h)];
+        int divsum = (div + 1) >> 1;
+        divsum *= divsum;
+        int[] dv = new int[256 * divsum];
+        for (int i = 0; i < dv.length; i++) {
+            dv[i] = i / divsum;
+        }
+        int[][] stack = new int[div][3];
+
+        int rsum, gsum, bsum, rinsum, ginsum, binsum, routsum, goutsum, boutsum;
+        int stackpointer, p, yp, yi = 0, yw = 0;
+        int[] sir;
+
+        for (int y = 0; y < h; y++) {
+            rinsum = ginsum = binsum = routsum = goutsum = boutsum = rsum = gsum = bsum = 0;
+            for (int i = -radius; i <= radius; i++) {
+                p = pix[yi + Math.min(wm, Math.max(i, 0))];
+                sir = stack[i + radius];
+                sir[0] = (p & 0xff0000) >> 16;
+                sir[1] = (p & 0x00ff00) >> 8;
+                sir[2] = (p & 0x0000ff);
+                final int rbs = r1 - Math.abs(i);
+                rsum += sir[0] * rbs;
+                gsum += sir[1] * rbs;
+                bsum += sir[2] * rbs;
+                if (i > 0) {
+                    rinsum += sir[0]; ginsum += sir[1]; binsum += sir[2];
+                } else {
+                    routsum += sir[0]; goutsum += sir[1]; boutsum += sir[2];
+                }
+            }
+            stackpointer = radius;
+
+            for (int x = 0; x < w; x++) {
+                r[yi] = dv[rsum];
+                g[yi] = dv[gsum];
+                b[yi] = dv[bsum];
+
+                rsum -= routsum; gsum -= goutsum; bsum -= boutsum;
+                sir = stack[(stackpointer - radius + div) % div];
+                routsum -= sir[0]; goutsum -= sir[1]; boutsum -= sir[2];
+
+                if (y == 0) {
+                    vmin[x] = Math.min(x + radius + 1, wm);
+                }
+                p = pix[yw + vmin[x]];
+                sir[0] = (p & 0xff0000) >> 16;
+                sir[1] = (p & 0x00ff00) >> 8;
+                sir[2] = (p & 0x0000ff);
+                rinsum += sir[0]; ginsum += sir[1]; binsum += sir[2];
+                rsum += rinsum; gsum += ginsum; bsum += binsum;
+
+                stackpointer = (stackpointer + 1) % div;
+                sir = stack[stackpointer];
+                routsum += sir[0]; goutsum += sir[1]; boutsum += sir[2];
+                rinsum -= sir[0]; ginsum -= sir[1]; binsum -= sir[2];
+                yi++;
+            }
+            yw += w;
+        }
+
+        for (int x = 0; x < w; x++) {
+            rinsum = ginsum = binsum = routsum = goutsum = boutsum = rsum = gsum = bsum = 0;
+            yp = -radius * w;
+            for (int i = -radius; i <= radius; i++) {
+                yi = Math.max(0, yp) + x;
+                sir = stack[i + radius];
+                sir[0] = r[yi];
+                sir[1] = g[yi];
+                sir[2] = b[yi];
+                final int rbs = r1 - Math.abs(i);
+                rsum += r[yi] * rbs;
+                gsum += g[yi] * rbs;
+                bsum += b[yi] * rbs;
+                if (i > 0) {
+                    rinsum += sir[0]; ginsum += sir[1]; binsum += sir[2];
+                } else {
+                    routsum += sir[0]; goutsum += sir[1]; boutsum += sir[2];
+                }
+                if (i < hm) {
+                    yp += w;
+                }
+            }
+            yi = x;
+            stackpointer = radius;
+
+            for (int y = 0; y < h; y++) {
+                pix[yi] = (0xff000000 & pix[yi]) | (dv[rsum] << 16) | (dv[gsum] << 8) | dv[bsum];
+
+                rsum -= routsum; gsum -= goutsum; bsum -= boutsum;
+                sir = stack[(stackpointer - radius + div) % div];
+                routsum -= sir[0]; goutsum -= sir[1]; boutsum -= sir[2];
+
+                if (x == 0) {
+                    vmin[y] = Math.min(y + r1, hm) * w;
+                }
+                p = x + vmin[y];
+                sir[0] = r[p];
+                sir[1] = g[p];
+                sir[2] = b[p];
+                rinsum += sir[0]; ginsum += sir[1]; binsum += sir[2];
+                rsum += rinsum; gsum += ginsum; bsum += binsum;
+
+                stackpointer = (stackpointer + 1) % div;
+                sir = stack[stackpointer];
+                routsum += sir[0]; goutsum += sir[1]; boutsum += sir[2];
+                rinsum -= sir[0]; ginsum -= sir[1]; binsum -= sir[2];
+                yi += w;
+            }
+        }
+    }
+
+    /**
+     * Logs time taken by each blur mode for given bitmap and radius
+     */
+    public synchronized void logBenchmark(Bitmap src, float radius) {
+        final boolean[] useRs = { true, true, false, false };
+        final float[] maxScale = { 1f, 0.5f, 1f, 0.5f };
+        final String[] names = { "RenderScript", "RenderScript 1/2", "Java", "Java 1/2" };
+        for (int i = 0; i < names.length; i++) {
+            if (useRs[i] && mRs == null) continue;
+            final long startTime = SystemClock.elapsedRealtime();
+            Bitmap out = blur(src, radius, useRs[i], maxScale[i]);
+            final long time = SystemClock.elapsedRealtime() - startTime;
+            out.recycle();
+            Log.d(TAG, "benchmark: " + names[i] + "; " + src.getWidth() + "x" + src.getHeight() +
+                    "; radius=" + radius + "; took " + time + "ms");
+        }
+    }
+}
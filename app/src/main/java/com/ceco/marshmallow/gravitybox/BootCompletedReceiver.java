@@ -17,6 +17,8 @@ package com.ceco.marshmallow.gravitybox;
 
 import java.io.File;
 
+import com.ceco.marshmallow.gravitybox.ledcontrol.LedSettingsStore;
+
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
@@ -27,6 +29,7 @@ public class BootCompletedReceiver extends BroadcastReceiver {
     public void onReceive(Context context, Intent intent) {
         if (Intent.ACTION_BOOT_COMPLETED.equals(intent.getAction())) {
             prepareAssets(context);
+            LedSettingsStore.migrateIfNeeded(context);
         }
     }
 
@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2017 Peter Gregus for GravityBox Project (C3C076@xda)
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ceco.marshmallow.gravitybox;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.content.Context;
+import android.content.Intent;
+import android.os.SystemClock;
+import de.robv.android.xposed.XposedBridge;
+
+/*
+ * Routes broadcasts to sub-receivers indexed by action.
+ * Sub-receivers implementing BroadcastSubReceiver.ActionFilter get only
+ * the actions they declare, others get every broadcast.
+ */
+public class BroadcastDispatcher {
+    private static final String TAG = "GB:BroadcastDispatcher";
+    private static final boolean DEBUG = false;
+
+    private static class Entry {
+        final BroadcastSubReceiver receiver;
+        int dispatchCount;
+        long dispatchTimeNs;
+
+        Entry(BroadcastSubReceiver receiver) {
+            this.receiver = receiver;
+        }
+    }
+
+    private static void log(String message) {
+        XposedBridge.log(TAG + ": " + message);
+    }
+
+    private final Map<String, List<Entry>> mActionEntries = new HashMap<>();
+    private final List<Entry> mCatchAllEntries = new ArrayList<>();
+    private final Map<BroadcastSubReceiver, Entry> mEntries = new HashMap<>();
+
+    public void register(BroadcastSubReceiver receiver) {
+        if (mEntries.containsKey(receiver)) return;
+
+        Entry entry = new Entry(receiver);
+        mEntries.put(receiver, entry);
+        if (receiver instanceof BroadcastSubReceiver.ActionFilter) {
+            for (String action : ((BroadcastSubReceiver.ActionFilter) receiver).getBroadcastActions()) {
+                List<Entry> entries = mActionEntries.get(action);
+                if (entries == null) {
+                    entries = new ArrayList<>();
+                    mActionEntries.put(action, entries);
+                }
+                if (!entries.contains(entry)) {
+                    entries.add(entry);
+                }
+            }
+        } else {
+            mCatchAllEntries.add(entry);
+        }
+    }
+
+    public void unregister(BroadcastSubReceiver receiver) {
+        Entry entry = mEntries.remove(receiver);
+        if (entry == null) return;
+
+        mCatchAllEntries.remove(entry);
+        for (List<Entry> entries : mActionEntries.values()) {
+            entries.remove(entry);
+        }
+    }
+
+    public void dispatch(Context context, Intent intent) {
+        List<Entry> entries = mActionEntries.get(intent.getAction());
+        if (entries != null) {
+            dispatch(entries, context, intent);
+        }
+        dispatch(mCatchAllEntries, context, intent);
+    }
+
+    private void dispatch(List<Entry> entries, Context context, Intent intent) {
+        for (int i = 0; i < entries.size(); i++) {
+            final Entry entry = entries.get(i);
+            final long start = SystemClock.elapsedRealtimeNanos();
+            entry.receiver.onBroadcastReceived(context, intent);
+            entry.dispatchTimeNs += SystemClock.elapsedRealtimeNanos() - start;
+            entry.dispatchCount++;
+            if (DEBUG) log(entry.receiver.getClass().getSimpleName() + ": " +
+                    intent.getAction() + "; count=" + entry.dispatchCount +
+                    "; total=" + entry.dispatchTimeNs / 1000 + "us");
+        }
+    }
+
+    public void dumpStats() {
+        for (Entry entry : mEntries.values()) {
+            log(entry.receiver.getClass().getSimpleName() + ": count=" + entry.dispatchCount +
+                    "; total=" + entry.dispatchTimeNs / 1000 + "us; avg=" +
+                    (entry.dispatchCount > 0 ? entry.dispatchTimeNs / entry.dispatchCount / 1000 : 0) + "us");
+        }
+    }
+}
@@ -5,4 +5,9 @@ import android.content.Intent;
 
 public interface BroadcastSubReceiver {
     void onBroadcastReceived(Context context, Intent intent);
+
+    // implemented by sub-receivers that want to get only broadcasts with given actions
+    interface ActionFilter {
+        String[] getBroadcastActions();
+    }
 }
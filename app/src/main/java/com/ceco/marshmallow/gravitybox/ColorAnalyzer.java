@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2017 Peter Gregus for GravityBox Project (C3C076@xda)
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ceco.marshmallow.gravitybox;
+
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import android.graphics.Bitmap;
+import android.graphics.Color;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.LruCache;
+
+/*
+ * Extracts palette of predominant colors from bitmap.
+ * Bitmap is sampled on a grid of at most SAMPLE_SIZE x SAMPLE_SIZE pixels
+ * and colors are quantized to 4 bits per channel into a primitive histogram.
+ * Palette colors are averages of the most populated histogram bins.
+ * Results are cached by bitmap generation ID.
+ */
+public class ColorAnalyzer {
+    private static final int SAMPLE_SIZE = 112;
+    private static final int QUANT_BITS = 4;
+    private static final int BIN_COUNT = 1 << (QUANT_BITS * 3);
+
+    public interface PaletteListener {
+        void onPaletteReady(int[] palette);
+    }
+
+    private static final LruCache<String, int[]> sCache = new LruCache<String, int[]>(16);
+    private static ExecutorService sExecutor;
+    private static Handler sHandler;
+
+    // histogram buffers are reused by all synchronous calls
+    private static final int[] sCounts = new int[BIN_COUNT];
+    private static final int[] sSumR = new int[BIN_COUNT];
+    private static final int[] sSumG = new int[BIN_COUNT];
+    private static final int[] sSumB = new int[BIN_COUNT];
+    private static int[] sRow = new int[0];
+
+    /**
+     * @return up to maxColors colors ordered by population, empty array
+     * if bitmap has no opaque pixels
+     */
+    public static int[] getPalette(Bitmap bmp, int maxColors) {
+        final String key = bmp.getGenerationId() + ":" + maxColors;
+        int[] palette = sCache.get(key);
+        if (palette == null) {
+            palette = computePalette(bmp, maxColors);
+            sCache.put(key, palette);
+        }
+        return palette;
+    }
+
+    /**
+     * Computes palette on background thread and delivers it on main thread.
+     * Bitmap must not be recycled or modified until listener is called.
+     */
+    public static void getPaletteAsync(final Bitmap bmp, final int maxColors,
+            final PaletteListener listener) {
+        synchronized (ColorAnalyzer.class) {
+            if (sExecutor == null) {
+                sExecutor = Executors.newSingleThreadExecutor();
+                sHandler = new Handler(Looper.getMainLooper());
+            }
+        }
+        sExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final int[] palette = getPalette(bmp, maxColors);
+                sHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.onPaletteReady(palette);
+                    }
+                });
+            }
+        });
+    }
+
+    private static synchronized int[] computePalette(Bitmap bmp, int maxColors) {
+        final int width = bmp.getWidth();
+        final int height = bmp.getHeight();
+        final int step = Math.max(1, (Math.max(width, height) + SAMPLE_SIZE - 1) / SAMPLE_SIZE);
+        if (sRow.length < width) {
+            sRow = new int[width];
+        }
+        Arrays.fill(sCounts, 0);
+        Arrays.fill(sSumR, 0);
+        Arrays.fill(sSumG, 0);
+        Arrays.fill(sSumB, 0);
+
+        final int shift = 8 - QUANT_BITS;
+        for (int y = 0; y < height; y += step) {
+            bmp.getPixels(sRow, 0, width, 0, y, width, 1);
+            for (int x = 0; x < width; x += step) {
+                final int c = sRow[x];
+                // discard transparent pixels
+                if ((c >>> 24) < 0x80) continue;
+                final int r = (c >> 16) & 0xFF;
+                final int g = (c >> 8) & 0xFF;
+                final int b = c & 0xFF;
+                final int bin = ((r >> shift) << (QUANT_BITS * 2)) |
+                        ((g >> shift) << QUANT_BITS) | (b >> shift);
+                sCounts[bin]++;
+                sSumR[bin] += r;
+                sSumG[bin] += g;
+                sSumB[bin] += b;
+            }
+        }
+
+        // pick most populated bins; maxColors is expected to be small
+        final int[] bins = new int[maxColors];
+        int found = 0;
+        for (int bin = 0; bin < BIN_COUNT; bin++) {
+            final int count = sCounts[bin];
+            if (count == 0) continue;
+            int pos = found;
+            while (pos > 0 && sCounts[bins[pos - 1]] < count) {
+                if (pos < maxColors) bins[pos] = bins[pos - 1];
+                pos--;
+            }
+            if (pos < maxColors) {
+                bins[pos] = bin;
+                if (found < maxColors) found++;
+            }
+        }
+
+        final int[] palette = new int[found];
+        for (int i = 0; i < found; i++) {
+            final int bin = bins[i];
+            final int count = sCounts[bin];
+            palette[i] = Color.rgb(sSumR[bin] / count, sSumG[bin] / count, sSumB[bin] / count);
+        }
+        return palette;
+    }
+}
@@ -15,9 +15,11 @@
 
 package com.ceco.marshmallow.gravitybox;
 
+import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.FileReader;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -30,6 +32,7 @@ import java.util.Set;
 import com.ceco.marshmallow.gravitybox.R;
 import com.ceco.marshmallow.gravitybox.ledcontrol.LedMainActivity;
 import com.ceco.marshmallow.gravitybox.ledcontrol.LedSettings;
+import com.ceco.marshmallow.gravitybox.ledcontrol.LedSettingsStore;
 import com.ceco.marshmallow.gravitybox.managers.BatteryInfoManager;
 import com.ceco.marshmallow.gravitybox.preference.AppPickerPreference;
 import com.ceco.marshmallow.gravitybox.preference.AutoBrightnessDialogPreference;
@@ -40,8 +43,10 @@ import com.ceco.marshmallow.gravitybox.shortcuts.ShortcutActivity;
 import android.media.Ringtone;
 import android.media.RingtoneManager;
 import android.net.Uri;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.SystemClock;
 import android.preference.CheckBoxPreference;
 import android.preference.EditTextPreference;
 import android.preference.ListPreference;
@@ -651,6 +656,8 @@ public class GravityBoxSettings extends Activity implements GravityBoxResultRece
     public static final String PREF_KEY_DATA_TRAFFIC_SIZE = "pref_data_traffic_size";
     public static final String PREF_KEY_DATA_TRAFFIC_INACTIVITY_MODE = "pref_data_traffic_inactivity_mode";
     public static final String PREF_KEY_DATA_TRAFFIC_OMNI_MODE = "pref_data_traffic_omni_mode";
+    public static final String PREF_KEY_DATA_TRAFFIC_OMNI_SOURCE = "pref_data_traffic_omni_source";
+    public static final String PREF_KEY_DATA_TRAFFIC_OMNI_AVERAGE = "pref_data_traffic_omni_average";
     public static final String PREF_KEY_DATA_TRAFFIC_OMNI_SHOW_ICON = "pref_data_traffic_omni_show_icon";
     public static final String PREF_KEY_DATA_TRAFFIC_OMNI_AUTOHIDE = "pref_data_traffic_omni_autohide";
     public static final String PREF_KEY_DATA_TRAFFIC_OMNI_AUTOHIDE_TH = "pref_data_traffic_omni_autohide_threshold";
@@ -664,6 +671,8 @@ public class GravityBoxSettings extends Activity implements GravityBoxResultRece
     public static final String EXTRA_DT_SIZE = "dtSize";
     public static final String EXTRA_DT_INACTIVITY_MODE = "dtInactivityMode";
     public static final String EXTRA_DT_OMNI_MODE = "dtOmniMode";
+    public static final String EXTRA_DT_OMNI_SOURCE = "dtOmniSource";
+    public static final String EXTRA_DT_OMNI_AVERAGE = "dtOmniAverage";
     public static final String EXTRA_DT_OMNI_SHOW_ICON = "dtOmniShowIcon";
     public static final String EXTRA_DT_OMNI_AUTOHIDE = "dtOmniAutohide";
     public static final String EXTRA_DT_OMNI_AUTOHIDE_TH = "dtOmniAutohideTh";
@@ -983,6 +992,10 @@ public class GravityBoxSettings extends Activity implements GravityBoxResultRece
         public int[] fingerprintIds;
         public boolean isOxygenOs35Rom;
 
+        // snapshot is valid only for the same module version within the same boot
+        private static final String SNAPSHOT_PREFS = "system_properties";
+        private static final String SNAPSHOT_KEY_STAMP = "stamp";
+
         public SystemProperties(Bundle data) {
             if (data.containsKey("hasGeminiSupport")) {
                 hasGeminiSupport = data.getBoolean("hasGeminiSupport");
@@ -1015,6 +1028,109 @@ public class GravityBoxSettings extends Activity implements GravityBoxResultRece
                 isOxygenOs35Rom = data.getBoolean("isOxygenOs35Rom");
             }
         }
+
+        private SystemProperties(SharedPreferences prefs) {
+            hasGeminiSupport = prefs.getBoolean("hasGeminiSupport", false);
+            isTablet = prefs.getBoolean("isTablet", false);
+            hasNavigationBar = prefs.getBoolean("hasNavigationBar", false);
+            unplugTurnsOnScreen = prefs.getBoolean("unplugTurnsOnScreen", false);
+            defaultNotificationLedOff = prefs.getInt("defaultNotificationLedOff", 0);
+            hasMsimSupport = prefs.getBoolean("hasMsimSupport", false);
+            xposedBridgeVersion = prefs.getInt("xposedBridgeVersion", 0);
+            supportsFingerprint = prefs.getBoolean("supportsFingerprint", false);
+            String ids = prefs.getString("fingerprintIds", null);
+            if (ids != null) {
+                String[] parts = ids.isEmpty() ? new String[0] : ids.split(",");
+                fingerprintIds = new int[parts.length];
+                for (int i = 0; i < parts.length; i++) {
+                    fingerprintIds[i] = Integer.valueOf(parts[i]);
+                }
+            }
+            isOxygenOs35Rom = prefs.getBoolean("isOxygenOs35Rom", false);
+        }
+
+        public static SystemProperties loadSnapshot(Context context) {
+            final String stamp = getSnapshotStamp(context);
+            if (stamp == null) return null;
+            SharedPreferences prefs = context.getSharedPreferences(SNAPSHOT_PREFS, Context.MODE_PRIVATE);
+            if (!stamp.equals(prefs.getString(SNAPSHOT_KEY_STAMP, null))) return null;
+            try {
+                return new SystemProperties(prefs);
+            } catch (Throwable t) {
+                Log.e("GravityBox", "Error loading system properties snapshot", t);
+                return null;
+            }
+        }
+
+        public void saveSnapshot(Context context) {
+            final String stamp = getSnapshotStamp(context);
+            if (stamp == null) return;
+            StringBuilder ids = null;
+            if (fingerprintIds != null) {
+                ids = new StringBuilder();
+                for (int i = 0; i < fingerprintIds.length; i++) {
+                    if (i > 0) ids.append(',');
+                    ids.append(fingerprintIds[i]);
+                }
+            }
+            context.getSharedPreferences(SNAPSHOT_PREFS, Context.MODE_PRIVATE).edit()
+                .clear()
+                .putString(SNAPSHOT_KEY_STAMP, stamp)
+                .putBoolean("hasGeminiSupport", hasGeminiSupport)
+                .putBoolean("isTablet", isTablet)
+                .putBoolean("hasNavigationBar", hasNavigationBar)
+                .putBoolean("unplugTurnsOnScreen", unplugTurnsOnScreen)
+                .putInt("defaultNotificationLedOff", defaultNotificationLedOff)
+                .putBoolean("hasMsimSupport", hasMsimSupport)
+                .putInt("xposedBridgeVersion", xposedBridgeVersion)
+                .putBoolean("supportsFingerprint", supportsFingerprint)
+                .putString("fingerprintIds", ids == null ? null : ids.toString())
+                .putBoolean("isOxygenOs35Rom", isOxygenOs35Rom)
+                .apply();
+        }
+
+        private static String getSnapshotStamp(Context context) {
+            String bootId = null;
+            BufferedReader reader = null;
+            try {
+                reader = new BufferedReader(new FileReader("/proc/sys/kernel/random/boot_id"));
+                bootId = reader.readLine();
+            } catch (IOException e) {
+                Log.e("GravityBox", "Unable to read boot id: " + e.getMessage());
+            } finally {
+                if (reader != null) {
+                    try { reader.close(); } catch (IOException e) { }
+                }
+            }
+            if (bootId == null) return null;
+            try {
+                PackageInfo pInfo = context.getPackageManager().getPackageInfo(context.getPackageName(), 0);
+                return pInfo.versionCode + ":" + bootId.trim();
+            } catch (NameNotFoundException e) {
+                return null;
+            }
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof SystemProperties)) return false;
+            SystemProperties p = (SystemProperties) o;
+            return (hasGeminiSupport == p.hasGeminiSupport &&
+                    isTablet == p.isTablet &&
+                    hasNavigationBar == p.hasNavigationBar &&
+                    unplugTurnsOnScreen == p.unplugTurnsOnScreen &&
+                    defaultNotificationLedOff == p.defaultNotificationLedOff &&
+                    hasMsimSupport == p.hasMsimSupport &&
+                    xposedBridgeVersion == p.xposedBridgeVersion &&
+                    supportsFingerprint == p.supportsFingerprint &&
+                    Arrays.equals(fingerprintIds, p.fingerprintIds) &&
+                    isOxygenOs35Rom == p.isOxygenOs35Rom);
+        }
+
+        @Override
+        public int hashCode() {
+            return xposedBridgeVersion * 31 + defaultNotificationLedOff;
+        }
     }
 
     private GravityBoxResultReceiver mReceiver;
@@ -1022,9 +1138,17 @@ public class GravityBoxSettings extends Activity implements GravityBoxResultRece
     public static SystemProperties sSystemProperties;
     private Dialog mAlertDialog;
     private ProgressDialog mProgressDialog;
+    private long mSystemPropertiesRequestTime;
+    private boolean mUsingSnapshot;
     private Runnable mGetSystemPropertiesTimeout = new Runnable() {
         @Override
         public void run() {
+            if (mUsingSnapshot) {
+                // keep working with snapshot; it's from current boot anyway
+                Log.w("GravityBox", "System properties refresh timed out");
+                mHandler = null;
+                return;
+            }
             dismissProgressDialog();
             AlertDialog.Builder builder = new AlertDialog.Builder(GravityBoxSettings.this)
                 .setTitle(R.string.app_name)
@@ -1053,6 +1177,15 @@ public class GravityBoxSettings extends Activity implements GravityBoxResultRece
 
         // fix folder permissions
         SettingsManager.getInstance(this).fixFolderPermissionsAsync();
+
+        // create binary LED settings store from ledcontrol.xml if needed
+        final Context appContext = getApplicationContext();
+        AsyncTask.execute(new Runnable() {
+            @Override
+            public void run() {
+                LedSettingsStore.migrateIfNeeded(appContext);
+            }
+        });
         
         // refuse to run if there's GB with old package name still installed
         // prompt to uninstall previous package and finish
@@ -1089,14 +1222,24 @@ public class GravityBoxSettings extends Activity implements GravityBoxResultRece
             Intent intent = new Intent();
             intent.setAction(SystemPropertyProvider.ACTION_GET_SYSTEM_PROPERTIES);
             intent.putExtra("receiver", mReceiver);
-            mProgressDialog = new ProgressDialog(this);
-            mProgressDialog.setIndeterminate(true);
-            mProgressDialog.setTitle(R.string.app_name);
-            mProgressDialog.setMessage(getString(R.string.gb_startup_progress));
-            mProgressDialog.setCancelable(false);
-            mProgressDialog.show();
+            // open settings right away from snapshot taken earlier within this boot
+            // and refresh it in background
+            SystemProperties snapshot = SystemProperties.loadSnapshot(this);
+            mUsingSnapshot = (snapshot != null);
+            if (mUsingSnapshot) {
+                sSystemProperties = snapshot;
+                getFragmentManager().beginTransaction().replace(android.R.id.content, new PrefsFragment()).commit();
+            } else {
+                mProgressDialog = new ProgressDialog(this);
+                mProgressDialog.setIndeterminate(true);
+                mProgressDialog.setTitle(R.string.app_name);
+                mProgressDialog.setMessage(getString(R.string.gb_startup_progress));
+                mProgressDialog.setCancelable(false);
+                mProgressDialog.show();
+            }
             mHandler = new Handler();
             mHandler.postDelayed(mGetSystemPropertiesTimeout, 5000);
+            mSystemPropertiesRequestTime = SystemClock.elapsedRealtime();
             sendBroadcast(intent);
         }
     }
@@ -1120,11 +1263,17 @@ public class GravityBoxSettings extends Activity implements GravityBoxResultRece
             mHandler = null;
         }
         dismissProgressDialog();
-        Log.d("GravityBox", "result received: resultCode=" + resultCode);
+        Log.d("GravityBox", "result received: resultCode=" + resultCode + "; latency=" +
+                (SystemClock.elapsedRealtime() - mSystemPropertiesRequestTime) + "ms; fromSnapshot=" +
+                mUsingSnapshot);
         if (resultCode == SystemPropertyProvider.RESULT_SYSTEM_PROPERTIES) {
-            sSystemProperties = new SystemProperties(resultData);
+            SystemProperties props = new SystemProperties(resultData);
+            props.saveSnapshot(this);
+            if (mUsingSnapshot && props.equals(sSystemProperties)) return;
+            sSystemProperties = props;
+            if (isFinishing() || isDestroyed()) return;
             getFragmentManager().beginTransaction().replace(android.R.id.content, new PrefsFragment()).commit();
-        } else {
+        } else if (!mUsingSnapshot) {
             finish();
         }
     }
@@ -1270,6 +1419,8 @@ public class GravityBoxSettings extends Activity implements GravityBoxResultRece
         private ListPreference mPrefDataTrafficMode;
         private ListPreference mPrefDataTrafficInactivityMode;
         private ListPreference mPrefDataTrafficOmniMode;
+        private ListPreference mPrefDataTrafficOmniSource;
+        private ListPreference mPrefDataTrafficOmniAverage;
         private CheckBoxPreference mPrefDataTrafficOmniShowIcon;
         private CheckBoxPreference mPrefDataTrafficOmniAutohide;
         private SeekBarPreference mPrefDataTrafficOmniAutohideTh;
@@ -1528,6 +1679,8 @@ public class GravityBoxSettings extends Activity implements GravityBoxResultRece
             mPrefDataTrafficMode = (ListPreference) findPreference(PREF_KEY_DATA_TRAFFIC_MODE);
             mPrefDataTrafficInactivityMode = (ListPreference) findPreference(PREF_KEY_DATA_TRAFFIC_INACTIVITY_MODE);
             mPrefDataTrafficOmniMode = (ListPreference) findPreference(PREF_KEY_DATA_TRAFFIC_OMNI_MODE);
+            mPrefDataTrafficOmniSource = (ListPreference) findPreference(PREF_KEY_DATA_TRAFFIC_OMNI_SOURCE);
+            mPrefDataTrafficOmniAverage = (ListPreference) findPreference(PREF_KEY_DATA_TRAFFIC_OMNI_AVERAGE);
             mPrefDataTrafficOmniShowIcon = (CheckBoxPreference) findPreference(PREF_KEY_DATA_TRAFFIC_OMNI_SHOW_ICON);
             mPrefDataTrafficActiveMobileOnly = (CheckBoxPreference) findPreference(PREF_KEY_DATA_TRAFFIC_ACTIVE_MOBILE_ONLY);
             mPrefDataTrafficDisplayMode = (ListPreference) findPreference(PREF_KEY_DATA_TRAFFIC_DISPLAY_MODE);
@@ -2249,6 +2402,14 @@ public class GravityBoxSettings extends Activity implements GravityBoxResultRece
                 mPrefDataTrafficOmniMode.setSummary(mPrefDataTrafficOmniMode.getEntry());
             }
 
+            if (key == null || key.equals(PREF_KEY_DATA_TRAFFIC_OMNI_SOURCE)) {
+                mPrefDataTrafficOmniSource.setSummary(mPrefDataTrafficOmniSource.getEntry());
+            }
+
+            if (key == null || key.equals(PREF_KEY_DATA_TRAFFIC_OMNI_AVERAGE)) {
+                mPrefDataTrafficOmniAverage.setSummary(mPrefDataTrafficOmniAverage.getEntry());
+            }
+
             if (key == null || key.equals(PREF_KEY_DATA_TRAFFIC_INACTIVITY_MODE)) {
                 mPrefDataTrafficInactivityMode.setSummary(mPrefDataTrafficInactivityMode.getEntry());
             }
@@ -2317,6 +2478,8 @@ public class GravityBoxSettings extends Activity implements GravityBoxResultRece
                 mPrefCatDataTraffic.removePreference(mPrefDataTrafficSize);
                 mPrefCatDataTraffic.removePreference(mPrefDataTrafficInactivityMode);
                 mPrefCatDataTraffic.removePreference(mPrefDataTrafficOmniMode);
+                mPrefCatDataTraffic.removePreference(mPrefDataTrafficOmniSource);
+                mPrefCatDataTraffic.removePreference(mPrefDataTrafficOmniAverage);
                 mPrefCatDataTraffic.removePreference(mPrefDataTrafficOmniShowIcon);
                 mPrefCatDataTraffic.removePreference(mPrefDataTrafficActiveMobileOnly);
                 mPrefCatDataTraffic.removePreference(mPrefDataTrafficDisplayMode);
@@ -2336,6 +2499,8 @@ public class GravityBoxSettings extends Activity implements GravityBoxResultRece
                     mPrefCatDataTraffic.addPreference(mPrefDataTrafficInactivityMode);
                 } else if (mode.equals("OMNI")) {
                     mPrefCatDataTraffic.addPreference(mPrefDataTrafficOmniMode);
+                    mPrefCatDataTraffic.addPreference(mPrefDataTrafficOmniSource);
+                    mPrefCatDataTraffic.addPreference(mPrefDataTrafficOmniAverage);
                     mPrefCatDataTraffic.addPreference(mPrefDataTrafficOmniShowIcon);
                     mPrefCatDataTraffic.addPreference(mPrefDataTrafficOmniAutohide);
                     mPrefCatDataTraffic.addPreference(mPrefDataTrafficOmniAutohideTh);
@@ -3031,6 +3196,12 @@ public class GravityBoxSettings extends Activity implements GravityBoxResultRece
             } else if (key.equals(PREF_KEY_DATA_TRAFFIC_OMNI_MODE)) {
                 intent.setAction(ACTION_PREF_DATA_TRAFFIC_CHANGED);
                 intent.putExtra(EXTRA_DT_OMNI_MODE, prefs.getString(PREF_KEY_DATA_TRAFFIC_OMNI_MODE, "IN_OUT"));
+            } else if (key.equals(PREF_KEY_DATA_TRAFFIC_OMNI_SOURCE)) {
+                intent.setAction(ACTION_PREF_DATA_TRAFFIC_CHANGED);
+                intent.putExtra(EXTRA_DT_OMNI_SOURCE, prefs.getString(PREF_KEY_DATA_TRAFFIC_OMNI_SOURCE, "ALL"));
+            } else if (key.equals(PREF_KEY_DATA_TRAFFIC_OMNI_AVERAGE)) {
+                intent.setAction(ACTION_PREF_DATA_TRAFFIC_CHANGED);
+                intent.putExtra(EXTRA_DT_OMNI_AVERAGE, prefs.getString(PREF_KEY_DATA_TRAFFIC_OMNI_AVERAGE, "0"));
             } else if (key.equals(PREF_KEY_DATA_TRAFFIC_OMNI_SHOW_ICON)) {
                 intent.setAction(ACTION_PREF_DATA_TRAFFIC_CHANGED);
                 intent.putExtra(EXTRA_DT_OMNI_SHOW_ICON, 
@@ -3489,7 +3660,8 @@ public class GravityBoxSettings extends Activity implements GravityBoxResultRece
                 mDialog = builder.create();
                 mDialog.show();
             } else if (PREF_KEY_SETTINGS_BACKUP.equals(pref.getKey())) {
-                SettingsManager.getInstance(getActivity()).backupSettings();
+                SettingsManager.getInstance(getActivity()).backupSettings(
+                        createSettingsProgressListener(false));
             } else if (PREF_KEY_SETTINGS_RESTORE.equals(pref.getKey())) {
                 final SettingsManager sm = SettingsManager.getInstance(getActivity());
                 if (sm.isBackupObsolete()) {
@@ -3509,21 +3681,7 @@ public class GravityBoxSettings extends Activity implements GravityBoxResultRece
                         @Override
                         public void onClick(DialogInterface dialog, int which) {
                             dialog.dismiss();
-                            if (sm.restoreSettings()) {
-                                AlertDialog.Builder builder = new AlertDialog.Builder(getActivity())
-                                .setTitle(R.string.app_name)
-                                .setMessage(R.string.settings_restore_reboot)
-                                .setCancelable(false)
-                                .setPositiveButton(android.R.string.ok, new DialogInterface.OnClickListener() {
-                                    @Override
-                                    public void onClick(DialogInterface dialog, int which) {
-                                        dialog.dismiss();
-                                        getActivity().finish();
-                                    }
-                                });
-                                mDialog = builder.create();
-                                mDialog.show();
-                            }
+                            sm.restoreSettings(createSettingsProgressListener(true));
                         }
                     })
                     .setNegativeButton(android.R.string.no, new DialogInterface.OnClickListener() {
@@ -3644,6 +3802,47 @@ public class GravityBoxSettings extends Activity implements GravityBoxResultRece
             startActivityForResult(intent, REQ_NOTIF_BG_IMAGE_LANDSCAPE);
         }
 
+        private SettingsManager.ProgressListener createSettingsProgressListener(final boolean restore) {
+            final ProgressDialog progressDialog = new ProgressDialog(getActivity());
+            progressDialog.setTitle(R.string.app_name);
+            progressDialog.setMessage(getString(restore ?
+                    R.string.pref_settings_restore_title : R.string.pref_settings_backup_title));
+            progressDialog.setProgressStyle(ProgressDialog.STYLE_HORIZONTAL);
+            progressDialog.setCancelable(false);
+            mDialog = progressDialog;
+            mDialog.show();
+
+            return new SettingsManager.ProgressListener() {
+                @Override
+                public void onProgressChanged(int current, int max) {
+                    progressDialog.setMax(max);
+                    progressDialog.setProgress(current);
+                }
+
+                @Override
+                public void onFinished(boolean success) {
+                    if (progressDialog.isShowing()) {
+                        progressDialog.dismiss();
+                    }
+                    if (!restore || !success || getActivity() == null) return;
+
+                    AlertDialog.Builder builder = new AlertDialog.Builder(getActivity())
+                    .setTitle(R.string.app_name)
+                    .setMessage(R.string.settings_restore_reboot)
+                    .setCancelable(false)
+                    .setPositiveButton(android.R.string.ok, new DialogInterface.OnClickListener() {
+                        @Override
+                        public void onClick(DialogInterface dialog, int which) {
+                            dialog.dismiss();
+                            getActivity().finish();
+                        }
+                    });
+                    mDialog = builder.create();
+                    mDialog.show();
+                }
+            };
+        }
+
         private void setCustomCallerImage() {
             int width = getResources().getDimensionPixelSize(R.dimen.caller_id_photo_width);
             int height = getResources().getDimensionPixelSize(R.dimen.caller_id_photo_height);
@@ -0,0 +1,206 @@
+/*
+ * Copyright (C) 2017 Peter Gregus for GravityBox Project (C3C076@xda)
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ceco.marshmallow.gravitybox;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.pm.ActivityInfo;
+import android.content.pm.PackageManager;
+import android.content.pm.PackageManager.NameNotFoundException;
+import android.graphics.Bitmap;
+import android.graphics.Bitmap.CompressFormat;
+import android.graphics.BitmapFactory;
+import android.util.Log;
+import android.util.LruCache;
+
+/*
+ * Rasterized app icons keyed by component, icon size and package update time.
+ * Memory tier is bounded LRU, disk tier lives in GravityBox files dir.
+ * Only GravityBox process writes disk tier and only for icons explicitly
+ * persisted from background threads, other processes (SystemUI)
+ * read from it and keep what they rasterize themselves in memory.
+ */
+public class IconCache {
+    private static final String TAG = "GB:IconCache";
+    private static final boolean DEBUG = false;
+    private static final String DIR_NAME = "icon_cache";
+
+    private static IconCache sInstance;
+
+    private final File mDir;
+    private final boolean mWritable;
+    private final PackageManager mPm;
+    private final LruCache<String, Bitmap> mMemCache;
+    // file prefix -> key of icon stored on disk, loaded on first write
+    private Map<String, String> mDiskKeys;
+
+    public static synchronized IconCache getInstance(Context context) {
+        if (sInstance == null) {
+            // do not keep caller's Activity; package contexts have no application context
+            Context appContext = context.getApplicationContext();
+            sInstance = new IconCache(appContext != null ? appContext : context);
+        }
+        return sInstance;
+    }
+
+    private IconCache(Context context) {
+        mPm = context.getPackageManager();
+        mWritable = GravityBox.PACKAGE_NAME.equals(context.getPackageName());
+        String dataDir = null;
+        try {
+            dataDir = mPm.getApplicationInfo(GravityBox.PACKAGE_NAME, 0).dataDir;
+        } catch (NameNotFoundException e) {
+            Log.e(TAG, "GravityBox package not found");
+        }
+        mDir = (dataDir == null ? null : new File(dataDir + "/files/" + DIR_NAME));
+
+        final int cacheSize = Math.min((int)Runtime.getRuntime().maxMemory() / 8, 4194304);
+        mMemCache = new LruCache<String, Bitmap>(cacheSize) {
+            @Override
+            protected int sizeOf(String key, Bitmap b) {
+                return b.getByteCount();
+            }
+        };
+    }
+
+    public long getLastUpdateTime(String pkgName) {
+        try {
+            return mPm.getPackageInfo(pkgName, 0).lastUpdateTime;
+        } catch (NameNotFoundException e) {
+            return 0;
+        }
+    }
+
+    private static String getFilePrefix(ComponentName cn, int sizePx) {
+        return cn.flattenToShortString().replace('/', '_') + "_" + sizePx + "_";
+    }
+
+    private static String getKey(ComponentName cn, int sizePx, long lastUpdateTime) {
+        return getFilePrefix(cn, sizePx) + lastUpdateTime;
+    }
+
+    /**
+     * @return cached icon or null if there's no icon for given component,
+     * size and package update time
+     */
+    public Bitmap get(ComponentName cn, int sizePx, long lastUpdateTime) {
+        final String key = getKey(cn, sizePx, lastUpdateTime);
+        Bitmap icon = mMemCache.get(key);
+        if (icon != null) return icon;
+
+        if (mDir != null) {
+            File f = new File(mDir, key + ".png");
+            if (f.canRead()) {
+                icon = BitmapFactory.decodeFile(f.getAbsolutePath());
+                if (icon != null) {
+                    mMemCache.put(key, icon);
+                    if (DEBUG) Log.d(TAG, "Loaded from disk: " + key);
+                }
+            }
+        }
+        return icon;
+    }
+
+    /**
+     * Returns cached icon of given activity rasterizing it and caching it
+     * in memory when missing
+     */
+    public Bitmap getIcon(ActivityInfo ai, int sizePx, long lastUpdateTime) {
+        final ComponentName cn = new ComponentName(ai.packageName, ai.name);
+        Bitmap icon = get(cn, sizePx, lastUpdateTime);
+        if (icon == null) {
+            icon = Utils.drawableToBitmap(ai.loadIcon(mPm));
+            if (icon == null) return null;
+            icon = Bitmap.createScaledBitmap(icon, sizePx, sizePx, true);
+            put(cn, sizePx, lastUpdateTime, icon);
+        }
+        return icon;
+    }
+
+    public void put(ComponentName cn, int sizePx, long lastUpdateTime, Bitmap icon) {
+        mMemCache.put(getKey(cn, sizePx, lastUpdateTime), icon);
+    }
+
+    /**
+     * Same as getIcon and stores icon to disk tier so that other processes can load it.
+     * Does disk I/O so it must not be called from UI thread.
+     */
+    public Bitmap persistIcon(ActivityInfo ai, int sizePx, long lastUpdateTime) {
+        Bitmap icon = getIcon(ai, sizePx, lastUpdateTime);
+        if (icon != null && mWritable && mDir != null) {
+            final ComponentName cn = new ComponentName(ai.packageName, ai.name);
+            writeToDisk(getFilePrefix(cn, sizePx), getKey(cn, sizePx, lastUpdateTime), icon);
+        }
+        return icon;
+    }
+
+    private synchronized void writeToDisk(String prefix, String key, Bitmap icon) {
+        if (mDiskKeys == null) {
+            mDiskKeys = new HashMap<String, String>();
+            if (!mDir.exists()) {
+                mDir.mkdirs();
+                mDir.setReadable(true, false);
+                mDir.setExecutable(true, false);
+            }
+            File[] files = mDir.listFiles();
+            if (files != null) {
+                for (File f : files) {
+                    // file name is <prefix><lastUpdateTime>.png
+                    final String name = f.getName();
+                    final int end = name.lastIndexOf(".png");
+                    final int start = name.lastIndexOf('_', end) + 1;
+                    if (end <= 0 || start <= 0) continue;
+                    final String existing = mDiskKeys.put(name.substring(0, start),
+                            name.substring(0, end));
+                    if (existing != null) {
+                        new File(mDir, existing + ".png").delete();
+                    }
+                }
+            }
+        }
+
+        final String oldKey = mDiskKeys.get(prefix);
+        if (key.equals(oldKey)) return;
+        // icon of previous package version is no longer needed
+        if (oldKey != null) {
+            new File(mDir, oldKey + ".png").delete();
+            mDiskKeys.remove(prefix);
+        }
+
+        File f = new File(mDir, key + ".png");
+        FileOutputStream fos = null;
+        try {
+            fos = new FileOutputStream(f);
+            if (icon.compress(CompressFormat.PNG, 100, fos)) {
+                f.setReadable(true, false);
+                mDiskKeys.put(prefix, key);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Error writing icon: " + e.getMessage());
+            f.delete();
+        } finally {
+            if (fos != null) {
+                try { fos.close(); } catch (IOException e) { }
+            }
+        }
+    }
+}
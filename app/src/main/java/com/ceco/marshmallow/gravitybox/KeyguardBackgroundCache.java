@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2017 Peter Gregus for GravityBox Project (C3C076@xda)
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ceco.marshmallow.gravitybox;
+
+import java.io.File;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Point;
+import android.os.SystemClock;
+import android.view.Display;
+import android.view.WindowManager;
+import de.robv.android.xposed.XposedBridge;
+
+/*
+ * Lockscreen background images decoded no larger than the keyguard needs.
+ * Sample size is derived from the display size so full resolution images are
+ * never held in SystemUI heap. The last (optionally blurred) result is kept and
+ * returned again as long as file modification time, blur intensity and target
+ * size are unchanged. Decode buffer of a blurred image is not displayed and is
+ * reused as inBitmap for the next decode.
+ */
+public class KeyguardBackgroundCache {
+    private static final String TAG = "GB:KeyguardBackgroundCache";
+    private static final boolean DEBUG = false;
+
+    private final Context mContext;
+    private String mKey;
+    private Bitmap mBitmap;
+    private Bitmap mDecodeBuffer;
+
+    private static void log(String message) {
+        XposedBridge.log(TAG + ": " + message);
+    }
+
+    public KeyguardBackgroundCache(Context context) {
+        mContext = context;
+    }
+
+    /**
+     * @param blurIntensity blur radius or 0 to keep image as is
+     * @return image sized for keyguard or null if file cannot be decoded
+     */
+    public synchronized Bitmap getBitmap(File file, int blurIntensity) {
+        if (!file.canRead()) {
+            clear();
+            return null;
+        }
+
+        final Point size = getTargetSize();
+        final String key = file.getAbsolutePath() + ":" + file.lastModified() + ":" +
+                file.length() + ":" + blurIntensity + ":" + size.x + "x" + size.y;
+        if (key.equals(mKey) && mBitmap != null && !mBitmap.isRecycled()) {
+            if (DEBUG) log("getBitmap: cache hit for " + file.getName());
+            return mBitmap;
+        }
+
+        final long startTime = DEBUG ? SystemClock.elapsedRealtime() : 0;
+        // bitmap currently shown must stay intact, reuse only private decode buffer
+        Bitmap bmp = decode(file, size, blurIntensity > 0 ? mDecodeBuffer : null);
+        if (bmp == null) {
+            clear();
+            return null;
+        }
+        if (blurIntensity > 0) {
+            mDecodeBuffer = bmp;
+            bmp = Utils.blurBitmap(mContext, bmp, blurIntensity);
+        } else {
+            mDecodeBuffer = null;
+        }
+        mBitmap = bmp;
+        mKey = key;
+        if (DEBUG) log("getBitmap: " + file.getName() + " decoded as " + bmp.getWidth() + "x" +
+                bmp.getHeight() + " in " + (SystemClock.elapsedRealtime() - startTime) + "ms");
+        return mBitmap;
+    }
+
+    /**
+     * Drops references to cached bitmaps. Bitmaps are not recycled as they
+     * might still be displayed.
+     */
+    public synchronized void clear() {
+        mKey = null;
+        mBitmap = null;
+        mDecodeBuffer = null;
+    }
+
+    private Point getTargetSize() {
+        Point size = new Point();
+        Display display = ((WindowManager) mContext.getSystemService(
+                Context.WINDOW_SERVICE)).getDefaultDisplay();
+        display.getRealSize(size);
+        // keyguard might rotate so normalize to portrait
+        if (size.x > size.y) {
+            size.set(size.y, size.x);
+        }
+        return size;
+    }
+
+    private static Bitmap decode(File file, Point size, Bitmap reusable) {
+        final String path = file.getAbsolutePath();
+        BitmapFactory.Options opts = new BitmapFactory.Options();
+        opts.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(path, opts);
+        if (opts.outWidth <= 0 || opts.outHeight <= 0) return null;
+
+        final int width = Math.min(opts.outWidth, opts.outHeight);
+        final int height = Math.max(opts.outWidth, opts.outHeight);
+        int sampleSize = 1;
+        while (width / (sampleSize * 2) >= size.x && height / (sampleSize * 2) >= size.y) {
+            sampleSize *= 2;
+        }
+
+        opts.inJustDecodeBounds = false;
+        opts.inSampleSize = sampleSize;
+        opts.inPreferredConfig = Bitmap.Config.ARGB_8888;
+        opts.inMutable = true;
+        if (reusable != null && !reusable.isRecycled() && reusable.isMutable()) {
+            opts.inBitmap = reusable;
+            try {
+                return BitmapFactory.decodeFile(path, opts);
+            } catch (IllegalArgumentException e) {
+                // buffer too small for this image
+                if (DEBUG) log("decode: cannot reuse bitmap: " + e.getMessage());
+                opts.inBitmap = null;
+            }
+        }
+        return BitmapFactory.decodeFile(path, opts);
+    }
+}
@@ -15,35 +15,46 @@
 
 package com.ceco.marshmallow.gravitybox;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
 
 import android.app.Service;
 import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
+import android.os.Bundle;
 import android.os.Handler;
 import android.os.IBinder;
 import android.os.Message;
 import android.os.Messenger;
+import android.os.ParcelFileDescriptor;
 import android.os.RemoteException;
+import android.os.SystemClock;
+import android.util.Log;
 
 public class KeyguardImageService extends Service {
-    public static final int MSG_BEGIN_OUTPUT = 1;
-    public static final int MSG_WRITE_OUTPUT = 2;
-    public static final int MSG_FINISH_OUTPUT = 3;
-    public static final int MSG_GET_NEXT_CHUNK = 4;
+    private static final String TAG = "GB:KeyguardImageService";
+    private static final boolean DEBUG = false;
+
+    // raw ARGB_8888 pixels are read from pipe passed in EXTRA_FD
+    public static final int MSG_WRITE_PIXELS = 5;
+    // sent to msg.replyTo once image is saved; client stays bound until then
+    public static final int MSG_IMAGE_SAVED = 6;
     public static final int MSG_ERROR = -1;
 
+    public static final String EXTRA_FD = "fd";
+    public static final String EXTRA_WIDTH = "width";
+    public static final String EXTRA_HEIGHT = "height";
+    public static final String EXTRA_START_TIME = "startTime";
+
     public static final String ACTION_KEYGUARD_IMAGE_UPDATED = "gravitybox.intent.action.KEYGUARD_IMAGE_UPDATED";
 
     private File mKisImageFile;
     private boolean mWriteInProgress;
-    private ByteArrayOutputStream mOutputStream;
     private SharedPreferences mPrefs;
 
     final Messenger mMessenger = new Messenger(new ClientHandler());
@@ -52,45 +63,50 @@ public class KeyguardImageService extends Service {
         @Override
         public void handleMessage(Message msg) {
             switch (msg.what) {
-                case MSG_BEGIN_OUTPUT:
-                    if (mWriteInProgress) return;
-                    try {
-                        mOutputStream = new ByteArrayOutputStream();
-                        mWriteInProgress = true;
-                        msg.replyTo.send(Message.obtain(null, MSG_GET_NEXT_CHUNK));
-                    } catch (Throwable t) {
-                        try {
-                            msg.replyTo.send(Message.obtain(null, MSG_ERROR));
-                        } catch (RemoteException e1) { }
-                        t.printStackTrace();
+                case MSG_WRITE_PIXELS:
+                    final Bundle data = msg.getData();
+                    final ParcelFileDescriptor pfd = data.getParcelable(EXTRA_FD);
+                    final Messenger replyTo = msg.replyTo;
+                    if (pfd == null) {
+                        sendReply(replyTo, MSG_ERROR);
+                        return;
                     }
-                    break;
-                case MSG_WRITE_OUTPUT:
-                    try {
-                        byte[] data = msg.getData().getByteArray("data");
-                        mOutputStream.write(data);
-                        data = null;
-                        msg.replyTo.send(Message.obtain(null, MSG_GET_NEXT_CHUNK));
-                    } catch (Throwable t) {
-                        try {
-                            msg.replyTo.send(Message.obtain(null, MSG_ERROR));
-                        } catch (RemoteException e1) { }
-                        t.printStackTrace();
+                    if (mWriteInProgress) {
+                        try { pfd.close(); } catch (IOException e) { }
+                        sendReply(replyTo, MSG_ERROR);
+                        return;
                     }
-                    break;
-                case MSG_FINISH_OUTPUT:
-                    try {
-                        if (saveImage()) {
-                            Intent intent = new Intent(ACTION_KEYGUARD_IMAGE_UPDATED);
-                            sendBroadcast(intent);
+                    mWriteInProgress = true;
+                    new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            final boolean saved = readAndSaveImage(pfd, data.getInt(EXTRA_WIDTH),
+                                    data.getInt(EXTRA_HEIGHT), data.getLong(EXTRA_START_TIME));
+                            post(new Runnable() {
+                                @Override
+                                public void run() {
+                                    mWriteInProgress = false;
+                                    if (saved) {
+                                        Intent intent = new Intent(ACTION_KEYGUARD_IMAGE_UPDATED);
+                                        sendBroadcast(intent);
+                                    }
+                                    sendReply(replyTo, saved ? MSG_IMAGE_SAVED : MSG_ERROR);
+                                }
+                            });
                         }
-                        mOutputStream.close();
-                    } catch (Throwable t) {
-                        t.printStackTrace();
-                    }
+                    }).start();
                     break;
             }
         }
+
+        private void sendReply(Messenger replyTo, int what) {
+            if (replyTo == null) return;
+            try {
+                replyTo.send(Message.obtain(null, what));
+            } catch (RemoteException e) {
+                e.printStackTrace();
+            }
+        }
     };
 
     @Override
@@ -106,24 +122,61 @@ public class KeyguardImageService extends Service {
         return mMessenger.getBinder();
     }
 
-    private boolean saveImage() {
+    private boolean readAndSaveImage(ParcelFileDescriptor pfd, int width, int height, long startTime) {
+        Bitmap bmp = null;
+        InputStream is = new ParcelFileDescriptor.AutoCloseInputStream(pfd);
         try {
-            Bitmap tmpBmp = BitmapFactory.decodeStream(
-                    new ByteArrayInputStream(mOutputStream.toByteArray()));
-            if (tmpBmp != null) {
-                if (mPrefs.getBoolean(GravityBoxSettings.PREF_KEY_LOCKSCREEN_BACKGROUND_BLUR_EFFECT, false)) {
-                    tmpBmp = Utils.blurBitmap(this, tmpBmp, mPrefs.getInt(
-                            GravityBoxSettings.PREF_KEY_LOCKSCREEN_BACKGROUND_BLUR_INTENSITY, 14));
+            if (width <= 0 || height <= 0) return false;
+            final byte[] pixels = new byte[width * height * 4];
+            int offset = 0;
+            while (offset < pixels.length) {
+                final int read = is.read(pixels, offset, pixels.length - offset);
+                if (read < 0) {
+                    Log.e(TAG, "Unexpected end of pixel data: " + offset + "/" + pixels.length);
+                    return false;
                 }
-                tmpBmp.compress(Bitmap.CompressFormat.PNG, 100, new FileOutputStream(mKisImageFile));
-                mKisImageFile.setReadable(true, false);
-                tmpBmp.recycle();
-                return true;
+                offset += read;
             }
+            bmp = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+            bmp.copyPixelsFromBuffer(ByteBuffer.wrap(pixels));
+            if (DEBUG) Log.d(TAG, "Pixels received " + (SystemClock.elapsedRealtime() - startTime) +
+                    "ms after screen off request");
+            return saveImage(bmp, startTime);
+        } catch (Exception e) {
+            e.printStackTrace();
             return false;
+        } finally {
+            try { is.close(); } catch (IOException e) { }
+            if (bmp != null) {
+                bmp.recycle();
+            }
+        }
+    }
+
+    private boolean saveImage(Bitmap bmp, long startTime) {
+        FileOutputStream fos = null;
+        try {
+            Bitmap tmpBmp = bmp;
+            if (mPrefs.getBoolean(GravityBoxSettings.PREF_KEY_LOCKSCREEN_BACKGROUND_BLUR_EFFECT, false)) {
+                tmpBmp = Utils.blurBitmap(this, bmp, mPrefs.getInt(
+                        GravityBoxSettings.PREF_KEY_LOCKSCREEN_BACKGROUND_BLUR_INTENSITY, 14));
+            }
+            fos = new FileOutputStream(mKisImageFile);
+            tmpBmp.compress(Bitmap.CompressFormat.PNG, 100, fos);
+            mKisImageFile.setReadable(true, false);
+            if (tmpBmp != bmp) {
+                tmpBmp.recycle();
+            }
+            if (DEBUG) Log.d(TAG, "Image ready " + (SystemClock.elapsedRealtime() - startTime) +
+                    "ms after screen off request");
+            return true;
         } catch (Exception e) {
             e.printStackTrace();
             return false;
+        } finally {
+            if (fos != null) {
+                try { fos.close(); } catch (IOException e) { }
+            }
         }
     }
 }
@@ -16,46 +16,39 @@
 
 package com.ceco.marshmallow.gravitybox;
 
-import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
 
 import android.os.StrictMode;
 
+/*
+ * Parses /proc/meminfo in a single pass keeping the file open
+ * and reusing read buffer so that repeated reads don't allocate.
+ */
 public class MemInfoReader {
-    byte[] mBuffer = new byte[1024];
-
-    private long mTotalSize;
-    private long mFreeSize;
-    private long mCachedSize;
+    public static final String MEMINFO_FILE = "/proc/meminfo";
 
-    private boolean matchText(byte[] buffer, int index, String text) {
-        int N = text.length();
-        if ((index+N) >= buffer.length) {
-            return false;
-        }
-        for (int i=0; i<N; i++) {
-            if (buffer[index+i] != text.charAt(i)) {
-                return false;
-            }
-        }
-        return true;
+    // all sizes are in bytes
+    public static class MemInfo {
+        public long totalSize;
+        public long freeSize;
+        public long cachedSize;
     }
 
-    private long extractMemValue(byte[] buffer, int index) {
-        while (index < buffer.length && buffer[index] != '\n') {
-            if (buffer[index] >= '0' && buffer[index] <= '9') {
-                int start = index;
-                index++;
-                while (index < buffer.length && buffer[index] >= '0'
-                    && buffer[index] <= '9') {
-                    index++;
-                }
-                String str = new String(buffer, 0, start, index-start);
-                return ((long)Integer.parseInt(str)) * 1024;
-            }
-            index++;
-        }
-        return 0;
-    }
+    private static final int FIELD_TOTAL = 0;
+    private static final int FIELD_FREE = 1;
+    private static final int FIELD_CACHED = 2;
+    private static final byte[][] FIELD_KEYS = new byte[][] {
+        "MemTotal:".getBytes(),
+        "MemFree:".getBytes(),
+        "Cached:".getBytes()
+    };
+
+    private RandomAccessFile mFile;
+    private byte[] mBuffer = new byte[4096];
+    private final long[] mValues = new long[FIELD_KEYS.length];
+    private final MemInfo mMemInfo = new MemInfo();
 
     public void readMemInfo() {
         // Permit disk reads here, as /proc/meminfo isn't really "on
@@ -63,48 +56,94 @@ public class MemInfoReader {
         // /proc/ and /sys/ files perhaps?
         StrictMode.ThreadPolicy savedPolicy = StrictMode.allowThreadDiskReads();
         try {
-            mTotalSize = 0;
-            mFreeSize = 0;
-            mCachedSize = 0;
-            FileInputStream is = new FileInputStream("/proc/meminfo");
-            int len = is.read(mBuffer);
-            is.close();
-            final int BUFLEN = mBuffer.length;
-            int count = 0;
-            for (int i=0; i<len && count < 3; i++) {
-                if (matchText(mBuffer, i, "MemTotal")) {
-                    i += 8;
-                    mTotalSize = extractMemValue(mBuffer, i);
-                    count++;
-                } else if (matchText(mBuffer, i, "MemFree")) {
-                    i += 7;
-                    mFreeSize = extractMemValue(mBuffer, i);
-                    count++;
-                } else if (matchText(mBuffer, i, "Cached")) {
-                    i += 6;
-                    mCachedSize = extractMemValue(mBuffer, i);
-                    count++;
-                }
-                while (i < BUFLEN && mBuffer[i] != '\n') {
-                    i++;
-                }
+            Arrays.fill(mValues, -1);
+            final int len = readFile();
+            if (len > 0) {
+                parse(len);
             }
-        } catch (java.io.FileNotFoundException e) {
-        } catch (java.io.IOException e) {
+            mMemInfo.totalSize = Math.max(0, mValues[FIELD_TOTAL]);
+            mMemInfo.freeSize = Math.max(0, mValues[FIELD_FREE]);
+            mMemInfo.cachedSize = Math.max(0, mValues[FIELD_CACHED]);
         } finally {
             StrictMode.setThreadPolicy(savedPolicy);
         }
     }
 
+    private int readFile() {
+        try {
+            if (mFile == null) {
+                mFile = new RandomAccessFile(MEMINFO_FILE, "r");
+            }
+            mFile.seek(0);
+            int len = 0;
+            int n;
+            while ((n = mFile.read(mBuffer, len, mBuffer.length - len)) > 0) {
+                len += n;
+                if (len == mBuffer.length) {
+                    mBuffer = Arrays.copyOf(mBuffer, mBuffer.length * 2);
+                }
+            }
+            return len;
+        } catch (IOException e) {
+            close();
+            return -1;
+        }
+    }
+
+    private void parse(int len) {
+        final byte[] buf = mBuffer;
+        int found = 0;
+        int pos = 0;
+        while (pos < len && found < FIELD_KEYS.length) {
+            final int field = matchField(pos, len);
+            if (field >= 0) {
+                pos += FIELD_KEYS[field].length;
+                while (pos < len && buf[pos] == ' ') pos++;
+                long value = 0;
+                while (pos < len && buf[pos] >= '0' && buf[pos] <= '9') {
+                    value = value * 10 + (buf[pos++] - '0');
+                }
+                if (mValues[field] < 0) found++;
+                // values are reported in kB
+                mValues[field] = value * 1024;
+            }
+            while (pos < len && buf[pos] != '\n') pos++;
+            pos++;
+        }
+    }
+
+    private int matchField(int pos, int len) {
+        for (int i = 0; i < FIELD_KEYS.length; i++) {
+            final byte[] key = FIELD_KEYS[i];
+            if (pos + key.length > len) continue;
+            int j = 0;
+            while (j < key.length && mBuffer[pos + j] == key[j]) j++;
+            if (j == key.length) return i;
+        }
+        return -1;
+    }
+
+    public void close() {
+        if (mFile != null) {
+            try { mFile.close(); } catch (IOException e) { }
+            mFile = null;
+        }
+    }
+
+    // returned snapshot is reused by subsequent reads
+    public MemInfo getMemInfo() {
+        return mMemInfo;
+    }
+
     public long getTotalSize() {
-        return mTotalSize;
+        return mMemInfo.totalSize;
     }
 
     public long getFreeSize() {
-        return mFreeSize;
+        return mMemInfo.freeSize;
     }
 
     public long getCachedSize() {
-        return mCachedSize;
+        return mMemInfo.cachedSize;
     }
 }
@@ -75,6 +75,9 @@ public class ModAudio {
                     mQhPrefs != null) {
                 mQhPrefs.reload();
                 mQh = new QuietHours(mQhPrefs);
+            } else if ((intent.getAction().equals(Intent.ACTION_TIME_CHANGED) ||
+                    intent.getAction().equals(Intent.ACTION_TIMEZONE_CHANGED)) && mQh != null) {
+                mQh.invalidateSchedule();
             }
         }
     };
@@ -112,6 +115,8 @@ public class ModAudio {
                         intentFilter.addAction(GravityBoxSettings.ACTION_PREF_VOL_SWAP_KEYS_CHANGED);
                         intentFilter.addAction(GravityBoxSettings.ACTION_PREF_LINK_VOLUMES_CHANGED);
                         intentFilter.addAction(QuietHoursActivity.ACTION_QUIET_HOURS_CHANGED);
+                        intentFilter.addAction(Intent.ACTION_TIME_CHANGED);
+                        intentFilter.addAction(Intent.ACTION_TIMEZONE_CHANGED);
                         context.registerReceiver(mBroadcastReceiver, intentFilter);
                         if (DEBUG) log("AudioService constructed. Broadcast receiver registered");
 
@@ -18,7 +18,6 @@ package com.ceco.marshmallow.gravitybox;
 import java.util.ArrayList;
 import android.annotation.SuppressLint;
 import android.app.Activity;
-import android.app.ActivityManager;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
@@ -60,6 +59,9 @@ public class ModClearAllRecents {
     public static final String CLASS_TASK_STACK_VIEW = "com.android.systemui.recents.views.TaskStackView";
     public static final String CLASS_VIEW_ANIMATION = "com.android.systemui.recents.views.ViewAnimation";
     public static final String CLASS_TASK_VIEW_EXIT_CONTEXT = CLASS_VIEW_ANIMATION + ".TaskViewExitContext";
+    public static final String CLASS_TASK_VIEW = "com.android.systemui.recents.views.TaskView";
+    public static final String CLASS_TASK_STACK = "com.android.systemui.recents.model.TaskStack";
+    public static final String CLASS_TASK = "com.android.systemui.recents.model.Task";
     private static final boolean DEBUG = false;
 
     private static enum SearchBarState { DEFAULT, HIDE_KEEP_SPACE, HIDE_REMOVE_SPACE }
@@ -79,11 +81,15 @@ public class ModClearAllRecents {
     private static int mExitAnimDuration;
     private static Activity mRecentsActivity;
     private static boolean mClearVisible;
+    private static ReflectionAccessor.FieldAccessor mStackField;
+    private static ReflectionAccessor.MethodAccessor mGetTasksMethod;
+    private static ReflectionAccessor.MethodAccessor mGetChildViewForTaskMethod;
+    private static ReflectionAccessor.MethodAccessor mDismissTaskMethod;
+    private static ReflectionAccessor.MethodAccessor mRemoveTaskMethod;
 
     // RAM bar
     private static TextView mBackgroundProcessText;
     private static TextView mForegroundProcessText;
-    private static ActivityManager mAm;
     private static MemInfoReader mMemInfoReader;
     private static Context mGbContext;
     private static LinearColorBar mRamUsageBar;
@@ -162,6 +168,7 @@ public class ModClearAllRecents {
             mClearVisible = prefs.getBoolean(GravityBoxSettings.PREF_KEY_RECENTS_CLEAR_ALL_VISIBLE, false);
             mSearchBarStatePrev = mSearchBarState;
             mMemInfoReader = new MemInfoReader();
+            initReflections(classLoader);
 
             XposedHelpers.findAndHookMethod(recentActivityClass, "onCreate", Bundle.class, new XC_MethodHook() {
                 @Override
@@ -169,7 +176,6 @@ public class ModClearAllRecents {
                     mRecentsActivity = (Activity) param.thisObject;
                     mGbContext = Utils.getGbContext(mRecentsActivity);
                     mHandler = new Handler();
-                    mAm = (ActivityManager) mRecentsActivity.getSystemService(Context.ACTIVITY_SERVICE);
                     mRecentsView = (ViewGroup) XposedHelpers.getObjectField(param.thisObject, "mRecentsView");
 
                     final Resources res = mRecentsActivity.getResources();
@@ -505,13 +511,10 @@ public class ModClearAllRecents {
                 return;
             }
 
-            ActivityManager.MemoryInfo memInfo = new ActivityManager.MemoryInfo();
-            mAm.getMemoryInfo(memInfo);
-            long secServerMem = 0;//XposedHelpers.getLongField(memInfo, "secondaryServerThreshold");
             mMemInfoReader.readMemInfo();
-            long availMem = mMemInfoReader.getFreeSize() + mMemInfoReader.getCachedSize() -
-                    secServerMem;
-            long totalMem = mMemInfoReader.getTotalSize();
+            final MemInfoReader.MemInfo memInfo = mMemInfoReader.getMemInfo();
+            long availMem = memInfo.freeSize + memInfo.cachedSize;
+            long totalMem = memInfo.totalSize;
 
             String sizeStr = Formatter.formatShortFileSize(mGbContext, totalMem-availMem);
             mForegroundProcessText.setText(mGbContext.getResources().getString(
@@ -544,18 +547,39 @@ public class ModClearAllRecents {
         }
     }
 
+    private static void initReflections(ClassLoader classLoader) {
+        try {
+            Class<?> taskStackViewClass = XposedHelpers.findClass(CLASS_TASK_STACK_VIEW, classLoader);
+            Class<?> taskStackClass = XposedHelpers.findClass(CLASS_TASK_STACK, classLoader);
+            Class<?> taskViewClass = XposedHelpers.findClass(CLASS_TASK_VIEW, classLoader);
+            Class<?> taskClass = XposedHelpers.findClass(CLASS_TASK, classLoader);
+            mGetTasksMethod = ReflectionAccessor.methodInHierarchy(TAG, taskStackClass, "getTasks");
+            mGetChildViewForTaskMethod = ReflectionAccessor.methodInHierarchy(TAG,
+                    taskStackViewClass, "getChildViewForTask", taskClass);
+            mDismissTaskMethod = ReflectionAccessor.methodInHierarchy(TAG, taskViewClass, "dismissTask");
+            mRemoveTaskMethod = ReflectionAccessor.methodInHierarchy(TAG,
+                    taskStackClass, "removeTask", taskClass);
+            // assigned last as it marks accessors as usable
+            mStackField = ReflectionAccessor.field(TAG, taskStackViewClass, "mStack");
+        } catch (Throwable t) {
+            XposedBridge.log(TAG + ": Unable to resolve task stack accessors: " + t.getMessage());
+            mStackField = null;
+        }
+    }
+
     private static final void clearStack(final ViewGroup stackView) {
-        Object stack = XposedHelpers.getObjectField(stackView, "mStack");
-        final ArrayList<?> tasks = (ArrayList<?>) XposedHelpers.callMethod(stack, "getTasks");
+        if (mStackField == null) return;
+
+        Object stack = mStackField.get(stackView);
+        final ArrayList<?> tasks = (ArrayList<?>) mGetTasksMethod.invoke(stack);
         final int count = tasks.size();
         for (int i = (count-1); i >= 0; i--) {
             Object task = tasks.get(i);
-            final Object taskView = XposedHelpers.callMethod(stackView,
-                    "getChildViewForTask", task);
+            final Object taskView = mGetChildViewForTaskMethod.invoke(stackView, task);
             if (taskView != null) {
-                XposedHelpers.callMethod(taskView, "dismissTask");
+                mDismissTaskMethod.invoke(taskView);
             } else if (!mClearVisible) {
-                XposedHelpers.callMethod(stack, "removeTask", task);
+                mRemoveTaskMethod.invoke(stack, task);
             }
         }
     }
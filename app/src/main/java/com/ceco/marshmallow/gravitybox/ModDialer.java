@@ -24,6 +24,7 @@ import java.util.List;
 import com.ceco.marshmallow.gravitybox.ledcontrol.QuietHours;
 
 import android.app.Fragment;
+import android.content.Context;
 import android.content.Intent;
 import android.content.res.Resources;
 import android.graphics.Bitmap;
@@ -53,10 +54,64 @@ public class ModDialer {
 
     private static QuietHours mQuietHours;
 
+    // unknown caller photo state kept across call card rebinds
+    private static Resources mUnknownPicRes;
+    private static Drawable.ConstantState mUnknownPicState;
+    private static long mCallerPhotoMtime;
+    private static int mCallerPhotoMaxDim;
+    private static int mCallerPhotoSampleSize;
+    private static Bitmap mCallerPhoto;
+
     private static void log(String message) {
         XposedBridge.log(TAG + ": " + message);
     }
 
+    private static synchronized Drawable.ConstantState getUnknownPicState(Fragment frag, Resources res) {
+        if (mUnknownPicRes != res) {
+            String resName = "img_no_image_automirrored";
+            int resId = res.getIdentifier(resName, "drawable",
+                    res.getResourcePackageName(frag.getId()));
+            Drawable picUnknown = (resId == 0 ? null : res.getDrawable(resId, null));
+            mUnknownPicState = (picUnknown == null ? null : picUnknown.getConstantState());
+            mUnknownPicRes = res;
+            if (DEBUG) log("Unknown picture constant state resolved: " + mUnknownPicState);
+        }
+        return mUnknownPicState;
+    }
+
+    // decodes caller photo only when file changes or larger size is needed
+    private static synchronized Bitmap getCallerPhoto(Context context, int targetSize) throws Throwable {
+        final String path = Utils.getGbContext(context).getFilesDir() + "/caller_photo";
+        final File f = new File(path);
+        final long mtime = f.lastModified();
+        if (mtime != mCallerPhotoMtime) {
+            mCallerPhotoMtime = mtime;
+            mCallerPhoto = null;
+            mCallerPhotoMaxDim = 0;
+            if (mtime != 0 && f.canRead()) {
+                BitmapFactory.Options opts = new BitmapFactory.Options();
+                opts.inJustDecodeBounds = true;
+                BitmapFactory.decodeFile(path, opts);
+                mCallerPhotoMaxDim = Math.max(opts.outWidth, opts.outHeight);
+            }
+            if (DEBUG) log("Caller photo changed; mtime=" + mtime + "; maxDim=" + mCallerPhotoMaxDim);
+        }
+        if (mCallerPhotoMaxDim <= 0) return null;
+
+        int sampleSize = 1;
+        while (mCallerPhotoMaxDim / (sampleSize * 2) >= targetSize) {
+            sampleSize *= 2;
+        }
+        if (mCallerPhoto == null || sampleSize < mCallerPhotoSampleSize) {
+            BitmapFactory.Options opts = new BitmapFactory.Options();
+            opts.inSampleSize = sampleSize;
+            mCallerPhoto = BitmapFactory.decodeFile(path, opts);
+            mCallerPhotoSampleSize = sampleSize;
+            if (DEBUG) log("Caller photo decoded with sample size " + sampleSize);
+        }
+        return mCallerPhoto;
+    }
+
     public static void init(final XSharedPreferences prefs, ClassLoader classLoader, final String packageName) {
 
         try {
@@ -110,22 +165,26 @@ public class ModDialer {
                     final Fragment frag = (Fragment) param.thisObject;
                     final Resources res = frag.getResources();
                     if (param.args[idx] != null) {
-                        String resName = "img_no_image_automirrored";
-                        Drawable picUnknown = res.getDrawable(res.getIdentifier(resName, "drawable",
-                                        res.getResourcePackageName(frag.getId())), null);
-                        shouldShowUnknownPhoto = ((Drawable)param.args[idx]).getConstantState().equals(
-                                                    picUnknown.getConstantState());
+                        Drawable.ConstantState picUnknownState = getUnknownPicState(frag, res);
+                        shouldShowUnknownPhoto = picUnknownState != null &&
+                                picUnknownState.equals(((Drawable)param.args[idx]).getConstantState());
                     }
 
                     if (shouldShowUnknownPhoto) {
-                        final String path = Utils.getGbContext(frag.getContext()).getFilesDir() + "/caller_photo";
-                        File f = new File(path);
-                        if (f.exists() && f.canRead()) {
-                            Bitmap b = BitmapFactory.decodeFile(path);
-                            if (b != null) {
-                                param.args[idx] = new BitmapDrawable(res, b);
-                                if (DEBUG) log("Unknow caller photo set");
-                            }
+                        int targetSize = 0;
+                        if (idx > 0 && param.args[0] instanceof ImageView) {
+                            ImageView iv = (ImageView) param.args[0];
+                            targetSize = Math.max(iv.getWidth(), iv.getHeight());
+                        }
+                        if (targetSize <= 0) {
+                            // view not laid out yet, photo might be shown fullscreen
+                            targetSize = Math.max(res.getDisplayMetrics().widthPixels,
+                                    res.getDisplayMetrics().heightPixels);
+                        }
+                        Bitmap b = getCallerPhoto(frag.getContext(), targetSize);
+                        if (b != null) {
+                            param.args[idx] = new BitmapDrawable(res, b);
+                            if (DEBUG) log("Unknow caller photo set");
                         }
                     }
                 }
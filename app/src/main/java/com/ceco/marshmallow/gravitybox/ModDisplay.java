@@ -15,10 +15,11 @@
 
 package com.ceco.marshmallow.gravitybox;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicBoolean;
+
 
 import com.ceco.marshmallow.gravitybox.ModLowBatteryWarning.ChargingLed;
 
@@ -31,7 +32,6 @@ import android.content.IntentFilter;
 import android.content.ServiceConnection;
 import android.content.res.Resources;
 import android.graphics.Bitmap;
-import android.graphics.Bitmap.CompressFormat;
 import android.graphics.Color;
 import android.graphics.Rect;
 import android.os.BatteryManager;
@@ -40,9 +40,11 @@ import android.os.Handler;
 import android.os.IBinder;
 import android.os.Message;
 import android.os.Messenger;
+import android.os.ParcelFileDescriptor;
 import android.os.PowerManager;
 import android.os.PowerManager.WakeLock;
 import android.os.ResultReceiver;
+import android.os.SystemClock;
 import android.view.Surface;
 import de.robv.android.xposed.XC_MethodHook;
 import de.robv.android.xposed.XSharedPreferences;
@@ -57,6 +59,7 @@ public class ModDisplay {
     private static final String CLASS_DISPLAY_MANAGER_GLOBAL = "android.hardware.display.DisplayManagerGlobal";
     private static final boolean DEBUG = false;
     private static final boolean DEBUG_KIS = false;
+    private static final int KIS_TIMEOUT = 10000;
 
     public static final String ACTION_GET_AUTOBRIGHTNESS_CONFIG = "gravitybox.intent.action.GET_AUTOBRIGHTNESS_CONFIG";
     public static final String ACTION_SET_AUTOBRIGHTNESS_CONFIG = "gravitybox.intent.action.SET_AUTOBRIGHTNESS_CONFIG";
@@ -77,9 +80,6 @@ public class ModDisplay {
     private static ChargingLed mChargingLed;
 
     private static ServiceConnection mKisServiceConn;
-    private static InputStream mKisImageStream;
-    private static Messenger mKisService;
-    private static Messenger mKisClient;
     private static KeyguardManager mKeyguardManager;
     private static boolean mLsBgLastScreenEnabled;
 
@@ -395,6 +395,7 @@ public class ModDisplay {
                     if ((waitForNegativeProximity && !pendingWaitForNegativeProximity ||
                             pendingRequestLocked == null || !pendingRequestLocked.equals(param.args[0])) &&
                             requestedScreenState == 0) {
+                        final long startTime = SystemClock.elapsedRealtime();
                         final Object dm = XposedHelpers.callStaticMethod(XposedHelpers.findClass(
                                 CLASS_DISPLAY_MANAGER_GLOBAL, classLoader), "getInstance");
                         final int display0 = ((int[])XposedHelpers.callMethod(dm, "getDisplayIds"))[0];
@@ -414,7 +415,7 @@ public class ModDisplay {
                              @Override
                              public void run() {
                                  final WakeLock wakeLock = mPm.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, TAG);
-                                 wakeLock.acquire(10000);
+                                 wakeLock.acquire(KIS_TIMEOUT);
                                  Bitmap tmpBmp = bmp;
                                  int width = bmp.getWidth();
                                  int height = bmp.getHeight();
@@ -428,85 +429,61 @@ public class ModDisplay {
                                      tmpBmp = Bitmap.createScaledBitmap(bmp, newWidth, newHeight, true);
                                  }
         
-                                 final ByteArrayOutputStream os = new ByteArrayOutputStream();
-                                 tmpBmp.compress(CompressFormat.PNG, 100, os);
-                                 try {
-                                    os.close();
-                                 } catch (IOException e1) { }
-                                 bmp.recycle();
-                                 tmpBmp.recycle();
-                                 mKisImageStream = new ByteArrayInputStream(os.toByteArray());
-
-                                 if (mKisClient == null) {
-                                     mKisClient = new Messenger(new Handler(h.getLooper()) {
-                                         @Override
-                                         public void handleMessage(Message msg) {
-                                             if (DEBUG_KIS) log("mKisClient: got reply: what=" + msg.what);
-                                             try {
-                                                 if (msg.what == KeyguardImageService.MSG_GET_NEXT_CHUNK) {
-                                                     byte[] data = new byte[204800];
-                                                     if (mKisImageStream.read(data) != -1) {
-                                                         Bundle bundle = new Bundle();
-                                                         bundle.putByteArray("data", data);
-                                                         Message dataMsg = Message.obtain(null, KeyguardImageService.MSG_WRITE_OUTPUT);
-                                                         dataMsg.setData(bundle);
-                                                         dataMsg.replyTo = mKisClient;
-                                                         mKisService.send(dataMsg);
-                                                         if (DEBUG_KIS) log("mKisClient: MSG_WRITE_OUTPUT sent");
-                                                     } else {
-                                                         msg = Message.obtain(null, KeyguardImageService.MSG_FINISH_OUTPUT);
-                                                         mKisService.send(msg);
-                                                         mContext.unbindService(mKisServiceConn);
-                                                         if (wakeLock != null && wakeLock.isHeld()) {
-                                                             wakeLock.release();
-                                                         }
-                                                         mKisService = null;
-                                                         mKisServiceConn = null;
-                                                         if (DEBUG_KIS) log("mKisClient: MSG_FINISH_OUTPUT sent");
-                                                     }
-                                                 } else if (msg.what == KeyguardImageService.MSG_ERROR) {
-                                                     mContext.unbindService(mKisServiceConn);
-                                                     if (wakeLock != null && wakeLock.isHeld()) {
-                                                         wakeLock.release();
-                                                     }
-                                                     mKisService = null;
-                                                     mKisServiceConn = null;
-                                                     log("mKisClient: MSG_ERROR received");
-                                                 }
-                                             } catch (Throwable t) {
-                                                 XposedBridge.log(t);
-                                             }
-                                         }
-                                     });
+                                 if (tmpBmp != bmp) {
+                                     bmp.recycle();
+                                 }
+                                 // raw pixels are sent as tightly packed ARGB_8888
+                                 if (tmpBmp.getConfig() != Bitmap.Config.ARGB_8888 ||
+                                         tmpBmp.getRowBytes() != tmpBmp.getWidth() * 4) {
+                                     Bitmap copy = tmpBmp.copy(Bitmap.Config.ARGB_8888, false);
+                                     tmpBmp.recycle();
+                                     tmpBmp = copy;
                                  }
+                                 final Bitmap kisBmp = tmpBmp;
 
-                                 mKisServiceConn = new ServiceConnection() {
+                                 final AtomicBoolean finished = new AtomicBoolean();
+                                 final ServiceConnection conn = new ServiceConnection() {
                                      @Override
-                                     public void onServiceConnected(ComponentName cn, IBinder binder) {
-                                         try {
-                                             mKisService = new Messenger(binder);
-                                             Message msg = Message.obtain(null, KeyguardImageService.MSG_BEGIN_OUTPUT);
-                                             msg.replyTo = mKisClient;
-                                             mKisService.send(msg);
-                                             if (DEBUG_KIS) log("mKisServiceConn: onServiceConnected");
-                                         } catch (Throwable t) {
-                                             XposedBridge.log(t);;
-                                         }
+                                     public void onServiceConnected(ComponentName cn, final IBinder binder) {
+                                         if (DEBUG_KIS) log("mKisServiceConn: onServiceConnected");
+                                         final ServiceConnection self = this;
+                                         // stay bound until service reports the image was saved
+                                         final Messenger replyTo = new Messenger(new Handler(h.getLooper()) {
+                                             @Override
+                                             public void handleMessage(Message msg) {
+                                                 if (DEBUG_KIS) log("mKisServiceConn: got reply: what=" + msg.what);
+                                                 finishKisTransfer(self, finished, wakeLock);
+                                             }
+                                         });
+                                         h.postDelayed(new Runnable() {
+                                             @Override
+                                             public void run() {
+                                                 finishKisTransfer(self, finished, wakeLock);
+                                             }
+                                         }, KIS_TIMEOUT);
+                                         new Thread(new Runnable() {
+                                             @Override
+                                             public void run() {
+                                                 if (!sendKisImage(new Messenger(binder), replyTo, kisBmp, startTime)) {
+                                                     finishKisTransfer(self, finished, wakeLock);
+                                                 }
+                                             }
+                                         }).start();
                                      }
                                      @Override
                                      public void onServiceDisconnected(ComponentName cn) {
-                                         if (wakeLock != null && wakeLock.isHeld()) {
-                                             wakeLock.release();
-                                         }
-                                         mKisService = null;
-                                         mKisServiceConn = null;
+                                         finishKisTransfer(this, finished, wakeLock);
                                          if (DEBUG_KIS) log("mKisServiceConn: onServiceDisconnected");
                                      } 
                                  };
+                                 mKisServiceConn = conn;
                                  ComponentName cn = new ComponentName(GravityBox.PACKAGE_NAME, KeyguardImageService.class.getName());
                                  Intent intent = new Intent();
                                  intent.setComponent(cn);
-                                 mContext.bindService(intent, mKisServiceConn, Context.BIND_AUTO_CREATE);
+                                 if (!mContext.bindService(intent, conn, Context.BIND_AUTO_CREATE)) {
+                                     kisBmp.recycle();
+                                     finishKisTransfer(conn, finished, wakeLock);
+                                 }
                              }
                          }).start();;
                     }
@@ -517,6 +494,66 @@ public class ModDisplay {
         }
     }
 
+    // hands raw pixels over to KeyguardImageService through a pipe in a single message
+    // returns false when transfer failed and no reply is to be expected
+    private static boolean sendKisImage(Messenger service, Messenger replyTo, Bitmap bmp, long startTime) {
+        ParcelFileDescriptor[] pipe = null;
+        try {
+            pipe = ParcelFileDescriptor.createPipe();
+            Bundle data = new Bundle();
+            data.putParcelable(KeyguardImageService.EXTRA_FD, pipe[0]);
+            data.putInt(KeyguardImageService.EXTRA_WIDTH, bmp.getWidth());
+            data.putInt(KeyguardImageService.EXTRA_HEIGHT, bmp.getHeight());
+            data.putLong(KeyguardImageService.EXTRA_START_TIME, startTime);
+            Message msg = Message.obtain(null, KeyguardImageService.MSG_WRITE_PIXELS);
+            msg.setData(data);
+            msg.replyTo = replyTo;
+            service.send(msg);
+            pipe[0].close();
+            pipe[0] = null;
+
+            ByteBuffer buf = ByteBuffer.allocate(bmp.getByteCount());
+            bmp.copyPixelsToBuffer(buf);
+            OutputStream os = new ParcelFileDescriptor.AutoCloseOutputStream(pipe[1]);
+            pipe[1] = null;
+            try {
+                os.write(buf.array(), 0, buf.position());
+            } finally {
+                os.close();
+            }
+            if (DEBUG_KIS) log("sendKisImage: " + bmp.getWidth() + "x" + bmp.getHeight() +
+                    " sent " + (SystemClock.elapsedRealtime() - startTime) + "ms after screen off request");
+            return true;
+        } catch (Throwable t) {
+            XposedBridge.log(t);
+            return false;
+        } finally {
+            if (pipe != null) {
+                for (ParcelFileDescriptor pfd : pipe) {
+                    if (pfd != null) {
+                        try { pfd.close(); } catch (IOException e) { }
+                    }
+                }
+            }
+            bmp.recycle();
+        }
+    }
+
+    // called on service reply, error, disconnect or timeout; only the first call has effect
+    private static void finishKisTransfer(ServiceConnection conn, AtomicBoolean finished, WakeLock wakeLock) {
+        if (!finished.compareAndSet(false, true)) return;
+        try {
+            mContext.unbindService(conn);
+        } catch (Throwable t) { /* ignore */ }
+        if (mKisServiceConn == conn) {
+            mKisServiceConn = null;
+        }
+        if (wakeLock != null && wakeLock.isHeld()) {
+            wakeLock.release();
+        }
+        if (DEBUG_KIS) log("finishKisTransfer: done");
+    }
+
     private static void updateAutobrightnessConfig(int[] lux, int[] brightness) {
         if (mDisplayPowerController == null || mContext == null) return;
 
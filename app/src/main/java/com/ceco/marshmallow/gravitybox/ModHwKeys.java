@@ -160,6 +160,8 @@ public class ModHwKeys {
     private static String[] mHeadsetUri = new String[2]; // index 0 = unplugged, index 1 = plugged 
     private static Method mLaunchAssistAction = null;
     private static Method mLaunchAssistLongPressAction = null;
+    private static ReflectionAccessor.FieldAccessor mHandlerField;
+    private static ReflectionAccessor.MethodAccessor mKeyguardOnMethod;
     private static ActivityManager mActivityManager;
     private static AudioManager mAudioManager;
     private static PowerManager mPowerManager;
@@ -424,11 +426,27 @@ public class ModHwKeys {
                         "launchAssistLongPressAction");
                 mLaunchAssistLongPressAction.setAccessible(true);
             }
+            if (mHandlerField == null) {
+                mHandlerField = ReflectionAccessor.field(TAG, classPhoneWindowManager, "mHandler");
+            }
+            if (mKeyguardOnMethod == null) {
+                mKeyguardOnMethod = ReflectionAccessor.method(TAG, classPhoneWindowManager, "keyguardOn");
+            }
         } catch (Throwable t) {
             XposedBridge.log(t);
         }
     }
 
+    private static Handler getHandler(Object phoneWindowManager) {
+        return (Handler) (mHandlerField != null ? mHandlerField.get(phoneWindowManager) :
+                XposedHelpers.getObjectField(phoneWindowManager, "mHandler"));
+    }
+
+    private static boolean isKeyguardOn() {
+        return (Boolean) (mKeyguardOnMethod != null ? mKeyguardOnMethod.invoke(mPhoneWindowManager) :
+                XposedHelpers.callMethod(mPhoneWindowManager, "keyguardOn"));
+    }
+
     public static void initAndroid(final XSharedPreferences prefs, final ClassLoader classLoader) {
         try {
             mPrefs = prefs;
@@ -547,9 +565,9 @@ public class ModHwKeys {
                     KeyEvent event = (KeyEvent) param.args[0];
                     int keyCode = event.getKeyCode();
                     boolean down = event.getAction() == KeyEvent.ACTION_DOWN;
-                    boolean keyguardOn = (Boolean) XposedHelpers.callMethod(mPhoneWindowManager, "keyguardOn");
+                    boolean keyguardOn = isKeyguardOn();
                     boolean isFromSystem = (event.getFlags() & KeyEvent.FLAG_FROM_SYSTEM) != 0;
-                    Handler handler = (Handler) XposedHelpers.getObjectField(param.thisObject, "mHandler");
+                    Handler handler = getHandler(param.thisObject);
                     if (DEBUG) log("interceptKeyBeforeQueueing: keyCode=" + keyCode +
                             "; action=" + event.getAction() + "; repeatCount=" + event.getRepeatCount() +
                             "; flags=0x" + Integer.toHexString(event.getFlags()) +
@@ -680,7 +698,7 @@ public class ModHwKeys {
 
                 @Override
                 protected void beforeHookedMethod(MethodHookParam param) throws Throwable {
-                    if ((Boolean) XposedHelpers.callMethod(mPhoneWindowManager, "keyguardOn"))
+                    if (isKeyguardOn())
                         return;
 
                     KeyEvent event = (KeyEvent) param.args[1];
@@ -699,7 +717,7 @@ public class ModHwKeys {
                         return;
                     }
 
-                    Handler mHandler = (Handler) XposedHelpers.getObjectField(param.thisObject, "mHandler");
+                    Handler mHandler = getHandler(param.thisObject);
 
                     if (keyCode == KeyEvent.KEYCODE_MENU && isFromSystem && !isTaskLocked() &&
                         (hasAction(HwKey.MENU) || !areHwKeysEnabled())) {
@@ -861,7 +879,7 @@ public class ModHwKeys {
                         try {
                             final Runnable r = (Runnable) XposedHelpers.getObjectField(param.thisObject,
                                     "toggleFloatAppLongPress");
-                            final Handler h = (Handler) XposedHelpers.getObjectField(param.thisObject, "mHandler");
+                            final Handler h = getHandler(param.thisObject);
                             h.removeCallbacks(r);
                         } catch (Throwable t) { /* be quiet */ }
                     }
@@ -1285,7 +1303,7 @@ public class ModHwKeys {
     }
 
     private static void killForegroundApp() {
-        Handler handler = (Handler) XposedHelpers.getObjectField(mPhoneWindowManager, "mHandler");
+        Handler handler = getHandler(mPhoneWindowManager);
         if (handler == null) return;
 
         handler.post(
@@ -1356,7 +1374,7 @@ public class ModHwKeys {
     }
 
     private static void switchToLastApp() {
-        Handler handler = (Handler) XposedHelpers.getObjectField(mPhoneWindowManager, "mHandler");
+        Handler handler = getHandler(mPhoneWindowManager);
         if (handler == null) return;
 
         handler.post(
@@ -1420,7 +1438,7 @@ public class ModHwKeys {
     private static void launchCustomApp(String uri) {
         if (uri == null) {
             try {
-                Handler handler = (Handler) XposedHelpers.getObjectField(mPhoneWindowManager, "mHandler");
+                Handler handler = getHandler(mPhoneWindowManager);
                 handler.post(new Runnable() {
                     @Override
                     public void run() {
@@ -1440,7 +1458,7 @@ public class ModHwKeys {
     }
 
     private static void launchCustomApp(final Intent intent) {
-        Handler handler = (Handler) XposedHelpers.getObjectField(mPhoneWindowManager, "mHandler");
+        Handler handler = getHandler(mPhoneWindowManager);
         if (handler == null) return;
 
         handler.post(
@@ -1488,7 +1506,7 @@ public class ModHwKeys {
     }
 
     public static void injectKey(final int keyCode) {
-        Handler handler = (Handler) XposedHelpers.getObjectField(mPhoneWindowManager, "mHandler");
+        Handler handler = getHandler(mPhoneWindowManager);
         if (handler == null) return;
 
         handler.post(new Runnable() {
@@ -1603,7 +1621,7 @@ public class ModHwKeys {
     private static final Object mScreenshotLock = new Object();
     private static ServiceConnection mScreenshotConnection = null;  
     private static void takeScreenshot() {
-        final Handler handler = (Handler) XposedHelpers.getObjectField(mPhoneWindowManager, "mHandler");
+        final Handler handler = getHandler(mPhoneWindowManager);
         if (handler == null) return;
 
         synchronized (mScreenshotLock) {  
@@ -1675,7 +1693,7 @@ public class ModHwKeys {
 
     private static void showGlobalActionsDialog() {
         try {
-            Handler handler = (Handler) XposedHelpers.getObjectField(mPhoneWindowManager, "mHandler");
+            Handler handler = getHandler(mPhoneWindowManager);
             handler.post(new Runnable() {
                 @Override
                 public void run() {
@@ -1709,7 +1727,7 @@ public class ModHwKeys {
 
     private static void showVolumePanel() {
         try {
-            Handler handler = (Handler) XposedHelpers.getObjectField(mPhoneWindowManager, "mHandler");
+            Handler handler = getHandler(mPhoneWindowManager);
             handler.post(new Runnable() {
                 @Override
                 public void run() {
@@ -23,6 +23,7 @@ import java.util.Map;
 
 import com.ceco.marshmallow.gravitybox.ModStatusBar.StatusBarState;
 import com.ceco.marshmallow.gravitybox.ledcontrol.LedSettings;
+import com.ceco.marshmallow.gravitybox.ledcontrol.LedSettingsStore;
 import com.ceco.marshmallow.gravitybox.ledcontrol.QuietHours;
 import com.ceco.marshmallow.gravitybox.ledcontrol.QuietHoursActivity;
 import com.ceco.marshmallow.gravitybox.ledcontrol.LedSettings.ActiveScreenMode;
@@ -83,6 +84,7 @@ public class ModLedControl {
     public static final String ACTION_CLEAR_NOTIFICATIONS = "gravitybox.intent.action.CLEAR_NOTIFICATIONS";
 
     private static XSharedPreferences mPrefs;
+    private static LedSettingsStore mLedSettingsStore;
     private static XSharedPreferences mQhPrefs;
     private static Context mContext;
     private static PowerManager mPm;
@@ -93,12 +95,17 @@ public class ModLedControl {
     private static Map<String, Long> mNotifTimestamps = new HashMap<String, Long>();
     private static boolean mUserPresent;
     private static Object mNotifManagerService;
+    private static ReflectionAccessor.FieldAccessor mNotificationListField;
+    private static ReflectionAccessor.MethodAccessor mIndexOfNotificationMethod;
     private static boolean mProximityWakeUpEnabled;
     private static boolean mScreenOnDueToActiveScreen;
     private static AudioManager mAudioManager;
     private static Integer mDefaultNotificationLedColor;
     private static Integer mDefaultNotificationLedOn;
     private static Integer mDefaultNotificationLedOff;
+    private static Map<String, LedSettings> mLedSettingsCache = new HashMap<String, LedSettings>();
+    private static long mLedSettingsCacheHits;
+    private static long mLedSettingsCacheMisses;
 
     private static SensorEventListener mProxSensorEventListener = new SensorEventListener() {
         @Override
@@ -131,6 +138,8 @@ public class ModLedControl {
             final String action = intent.getAction();
             if (action.equals(LedSettings.ACTION_UNC_SETTINGS_CHANGED)) {
                 mPrefs.reload();
+                mLedSettingsStore.reload();
+                invalidateLedSettingsCache();
                 if (intent.hasExtra(LedSettings.EXTRA_UNC_AS_ENABLED)) {
                     toggleActiveScreenFeature(intent.getBooleanExtra(
                             LedSettings.EXTRA_UNC_AS_ENABLED, false));
@@ -138,6 +147,9 @@ public class ModLedControl {
             } else if (action.equals(QuietHoursActivity.ACTION_QUIET_HOURS_CHANGED)) {
                 mQhPrefs.reload();
                 mQuietHours = new QuietHours(mQhPrefs);
+            } else if (action.equals(Intent.ACTION_TIME_CHANGED) ||
+                    action.equals(Intent.ACTION_TIMEZONE_CHANGED)) {
+                mQuietHours.invalidateSchedule();
             } else if (action.equals(Intent.ACTION_USER_PRESENT)) {
                 if (DEBUG) log("User present");
                 mUserPresent = true;
@@ -162,6 +174,8 @@ public class ModLedControl {
     public static void initAndroid(final XSharedPreferences mainPrefs, final ClassLoader classLoader) {
         mPrefs = new XSharedPreferences(GravityBox.PACKAGE_NAME, "ledcontrol");
         mPrefs.makeWorldReadable();
+        mLedSettingsStore = new LedSettingsStore(LedSettingsStore.getSystemFile());
+        mLedSettingsStore.reload();
         mQhPrefs = new XSharedPreferences(GravityBox.PACKAGE_NAME, "quiet_hours");
         mQhPrefs.makeWorldReadable();
         mQuietHours = new QuietHours(mQhPrefs);
@@ -170,6 +184,15 @@ public class ModLedControl {
 
         try {
             final Class<?> nmsClass = XposedHelpers.findClass(CLASS_NOTIFICATION_MANAGER_SERVICE, classLoader);
+            try {
+                mNotificationListField = ReflectionAccessor.field(TAG, nmsClass, "mNotificationList");
+                mIndexOfNotificationMethod = ReflectionAccessor.method(TAG, nmsClass,
+                        "indexOfNotificationLocked", String.class, String.class, int.class, int.class);
+            } catch (Throwable t) {
+                log("Unable to resolve notification list accessors: " + t.getMessage());
+                mNotificationListField = null;
+                mIndexOfNotificationMethod = null;
+            }
             XposedBridge.hookAllConstructors(nmsClass, new XC_MethodHook() {
                 @Override
                 protected void afterHookedMethod(final MethodHookParam param) throws Throwable {
@@ -181,6 +204,8 @@ public class ModLedControl {
                         intentFilter.addAction(LedSettings.ACTION_UNC_SETTINGS_CHANGED);
                         intentFilter.addAction(Intent.ACTION_USER_PRESENT);
                         intentFilter.addAction(QuietHoursActivity.ACTION_QUIET_HOURS_CHANGED);
+                        intentFilter.addAction(Intent.ACTION_TIME_CHANGED);
+                        intentFilter.addAction(Intent.ACTION_TIMEZONE_CHANGED);
                         intentFilter.addAction(Intent.ACTION_SCREEN_OFF);
                         intentFilter.addAction(ACTION_CLEAR_NOTIFICATIONS);
                         intentFilter.addAction(GravityBoxSettings.ACTION_PREF_POWER_CHANGED);
@@ -237,10 +262,10 @@ public class ModLedControl {
                 Notification oldN = getNotificationFromRecord(oldRecord);
                 final String pkgName = (String) param.args[0];
 
-                LedSettings ls = LedSettings.deserialize(mPrefs.getStringSet(pkgName, null));
+                LedSettings ls = getLedSettings(pkgName);
                 if (!ls.getEnabled()) {
                     // use default settings in case they are active
-                    ls = LedSettings.deserialize(mPrefs.getStringSet("default", null));
+                    ls = getLedSettings("default");
                     if (!ls.getEnabled() && !mQuietHours.quietHoursActive(ls, n, mUserPresent)) {
                         return;
                     }
@@ -387,15 +412,47 @@ public class ModLedControl {
         }
     };
 
+    private static LedSettings getLedSettings(String pkgName) {
+        synchronized (mLedSettingsCache) {
+            LedSettings ls = mLedSettingsCache.get(pkgName);
+            if (ls == null) {
+                mLedSettingsCacheMisses++;
+                // fall back to ledcontrol.xml until binary store gets created
+                ls = mLedSettingsStore.isValid() ? mLedSettingsStore.get(pkgName) :
+                        LedSettings.deserialize(mPrefs.getStringSet(pkgName, null));
+                mLedSettingsCache.put(pkgName, ls);
+            } else {
+                mLedSettingsCacheHits++;
+            }
+            return ls;
+        }
+    }
+
+    private static void invalidateLedSettingsCache() {
+        synchronized (mLedSettingsCache) {
+            if (DEBUG) log("Invalidating LED settings cache: " + getLedSettingsCacheStats());
+            mLedSettingsCache.clear();
+        }
+    }
+
+    public static String getLedSettingsCacheStats() {
+        synchronized (mLedSettingsCache) {
+            return "size=" + mLedSettingsCache.size() +
+                    "; hits=" + mLedSettingsCacheHits +
+                    "; misses=" + mLedSettingsCacheMisses;
+        }
+    }
+
     private static Object getOldNotificationRecord(Object pkg, Object tag, Object id, Object userId) {
         Object oldNotifRecord = null;
+        if (mNotificationListField == null || mIndexOfNotificationMethod == null) {
+            return null;
+        }
         try {
-            ArrayList<?> notifList = (ArrayList<?>) XposedHelpers.getObjectField(
-                    mNotifManagerService, "mNotificationList");
+            ArrayList<?> notifList = (ArrayList<?>) mNotificationListField.get(mNotifManagerService);
             synchronized (notifList) {
-                int index = (Integer) XposedHelpers.callMethod(
-                        mNotifManagerService, "indexOfNotificationLocked",
-                        pkg, tag, id, userId);
+                int index = (Integer) mIndexOfNotificationMethod.invoke(
+                        mNotifManagerService, pkg, tag, id, userId);
                 if (index >= 0) {
                     oldNotifRecord = notifList.get(index);
                 }
@@ -649,6 +706,7 @@ public class ModLedControl {
     // SystemUI package
     private static Object mStatusBar;
     private static XSharedPreferences mSysUiPrefs;
+    private static LedSettingsStore mSysUiLedSettingsStore;
 
     private static BroadcastReceiver mSystemUiBroadcastReceiver = new BroadcastReceiver() {
         @Override
@@ -838,9 +896,17 @@ public class ModLedControl {
 
     private static boolean shouldNotDisturb(Context context) {
         String pkgName = getTopLevelPackageName(context);
-        final XSharedPreferences uncPrefs = new XSharedPreferences(GravityBox.PACKAGE_NAME, "ledcontrol");
         if(pkgName != null) {
-            LedSettings ls = LedSettings.deserialize(uncPrefs.getStringSet(pkgName, null));
+            if (mSysUiLedSettingsStore == null) {
+                mSysUiLedSettingsStore = new LedSettingsStore(LedSettingsStore.getSystemFile());
+            }
+            LedSettings ls;
+            if (mSysUiLedSettingsStore.reloadIfChanged()) {
+                ls = mSysUiLedSettingsStore.get(pkgName);
+            } else {
+                final XSharedPreferences uncPrefs = new XSharedPreferences(GravityBox.PACKAGE_NAME, "ledcontrol");
+                ls = LedSettings.deserialize(uncPrefs.getStringSet(pkgName, null));
+            }
             return (ls.getEnabled() && ls.getHeadsUpDnd());
         } else {
             return false;
@@ -15,6 +15,7 @@
 
 package com.ceco.marshmallow.gravitybox;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -31,7 +32,6 @@ import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.res.Resources;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.PorterDuff;
@@ -90,6 +90,7 @@ public class ModLockscreen {
     private static Context mContext;
     private static Context mGbContext;
     private static Bitmap mCustomBg;
+    private static KeyguardBackgroundCache mBgCache;
     private static QuietHours mQuietHours;
     private static Object mPhoneStatusBar;
     private static DirectUnlock mDirectUnlock = DirectUnlock.OFF;
@@ -128,6 +129,9 @@ public class ModLockscreen {
                 mQhPrefs.reload();
                 mQuietHours = new QuietHours(mQhPrefs);
                 if (DEBUG) log("QuietHours settings reloaded");
+            } else if (action.equals(Intent.ACTION_TIME_CHANGED) ||
+                    action.equals(Intent.ACTION_TIMEZONE_CHANGED)) {
+                mQuietHours.invalidateSchedule();
             } else if (action.equals(GravityBoxSettings.ACTION_PREF_LOCKSCREEN_SHORTCUT_CHANGED)) {
                 if (mAppBar != null) {
                     if (intent.hasExtra(GravityBoxSettings.EXTRA_LS_SHORTCUT_SLOT)) {
@@ -200,6 +204,8 @@ public class ModLockscreen {
                     intentFilter.addAction(GravityBoxSettings.ACTION_LOCKSCREEN_SETTINGS_CHANGED);
                     intentFilter.addAction(KeyguardImageService.ACTION_KEYGUARD_IMAGE_UPDATED);
                     intentFilter.addAction(QuietHoursActivity.ACTION_QUIET_HOURS_CHANGED);
+                    intentFilter.addAction(Intent.ACTION_TIME_CHANGED);
+                    intentFilter.addAction(Intent.ACTION_TIMEZONE_CHANGED);
                     intentFilter.addAction(GravityBoxSettings.ACTION_PREF_LOCKSCREEN_BG_CHANGED);
                     intentFilter.addAction(GravityBoxSettings.ACTION_PREF_LOCKSCREEN_SHORTCUT_CHANGED);
                     mContext.registerReceiver(mBroadcastReceiver, intentFilter);
@@ -664,6 +670,9 @@ public class ModLockscreen {
             if (mCustomBg != null) {
                 mCustomBg = null;
             }
+            if (mBgCache == null) {
+                mBgCache = new KeyguardBackgroundCache(mContext);
+            }
             final String bgType = mPrefs.getString(
                   GravityBoxSettings.PREF_KEY_LOCKSCREEN_BACKGROUND,
                   GravityBoxSettings.LOCKSCREEN_BG_DEFAULT);
@@ -672,18 +681,17 @@ public class ModLockscreen {
                 int color = mPrefs.getInt(
                       GravityBoxSettings.PREF_KEY_LOCKSCREEN_BACKGROUND_COLOR, Color.BLACK);
                 mCustomBg = Utils.drawableToBitmap(new ColorDrawable(color));
+                mBgCache.clear();
             } else if (bgType.equals(GravityBoxSettings.LOCKSCREEN_BG_IMAGE)) {
-                String wallpaperFile = mGbContext.getFilesDir() + "/lockwallpaper";
-                mCustomBg = BitmapFactory.decodeFile(wallpaperFile);
+                File wallpaperFile = new File(mGbContext.getFilesDir() + "/lockwallpaper");
+                final int blurIntensity = mPrefs.getBoolean(
+                        GravityBoxSettings.PREF_KEY_LOCKSCREEN_BACKGROUND_BLUR_EFFECT, false) ?
+                                mPrefs.getInt(GravityBoxSettings.PREF_KEY_LOCKSCREEN_BACKGROUND_BLUR_INTENSITY, 14) : 0;
+                mCustomBg = mBgCache.getBitmap(wallpaperFile, blurIntensity);
             } else if (bgType.equals(GravityBoxSettings.LOCKSCREEN_BG_LAST_SCREEN)) {
                 setLastScreenBackground(false);
-            }
-    
-            if (!bgType.equals(GravityBoxSettings.LOCKSCREEN_BG_LAST_SCREEN) &&
-                    mCustomBg != null && mPrefs.getBoolean(
-                    GravityBoxSettings.PREF_KEY_LOCKSCREEN_BACKGROUND_BLUR_EFFECT, false)) {
-                mCustomBg = Utils.blurBitmap(mContext, mCustomBg, mPrefs.getInt(
-                          GravityBoxSettings.PREF_KEY_LOCKSCREEN_BACKGROUND_BLUR_INTENSITY, 14));
+            } else {
+                mBgCache.clear();
             }
             if (DEBUG) log("prepareCustomBackground: type=" + bgType);
         } catch (Throwable t) {
@@ -693,8 +701,9 @@ public class ModLockscreen {
 
     private static synchronized void setLastScreenBackground(boolean refresh) {
         try {
-            String kisImageFile = mGbContext.getFilesDir() + "/kis_image.png";
-            mCustomBg = BitmapFactory.decodeFile(kisImageFile);
+            // image is blurred by KeyguardImageService already
+            File kisImageFile = new File(mGbContext.getFilesDir() + "/kis_image.png");
+            mCustomBg = mBgCache.getBitmap(kisImageFile, 0);
             if (refresh && mPhoneStatusBar != null) {
                 XposedHelpers.callMethod(mPhoneStatusBar, "updateMediaMetaData", false);
             }
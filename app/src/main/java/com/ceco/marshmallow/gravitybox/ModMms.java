@@ -106,9 +106,16 @@ public class ModMms {
             if (DEBUG) log("prepareUnicodeFilter: Unicode stripping disabled");
             return false;
         } else {
-            mUnicodeFilter = new UnicodeFilter(uniStrMode.equals(
-                    GravityBoxSettings.UNISTR_NON_ENCODABLE));
+            final boolean stripNonDecodableOnly = uniStrMode.equals(
+                    GravityBoxSettings.UNISTR_NON_ENCODABLE);
+            // keep existing filter and its lookup table when mode is unchanged
+            if (mUnicodeFilter == null ||
+                    mUnicodeFilter.isStripNonDecodableOnly() != stripNonDecodableOnly) {
+                mUnicodeFilter = new UnicodeFilter(stripNonDecodableOnly);
+            }
             if (DEBUG) log("prepareUnicodeFilter: Unicode filter prepared; mode=" + uniStrMode);
+            if (DEBUG) mUnicodeFilter.logBenchmark(
+                    "Příliš žluťoučký kůň úpěl ďábelské ódy. Œuvre, Łódź, Đakovo. Γειά σου κόσμε! ", 4, 100);
             return true;
         }
     }
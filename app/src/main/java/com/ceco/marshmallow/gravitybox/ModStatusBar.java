@@ -148,7 +148,7 @@ public class ModStatusBar {
     private static int mInitialTouchY;
     private static int BRIGHTNESS_ON = 255;
 
-    private static List<BroadcastSubReceiver> mBroadcastSubReceivers = new ArrayList<BroadcastSubReceiver>();
+    private static BroadcastDispatcher mBroadcastDispatcher = new BroadcastDispatcher();
     private static List<StatusBarStateChangedListener> mStateChangeListeners = 
             new ArrayList<StatusBarStateChangedListener>();
 
@@ -162,8 +162,9 @@ public class ModStatusBar {
         public void onReceive(Context context, Intent intent) {
             if (DEBUG) log("Broadcast received: " + intent.toString());
 
-            for (BroadcastSubReceiver bsr : mBroadcastSubReceivers) {
-                bsr.onBroadcastReceived(context, intent);
+            mBroadcastDispatcher.dispatch(context, intent);
+            if (DEBUG && intent.getAction().equals(Intent.ACTION_SCREEN_OFF)) {
+                mBroadcastDispatcher.dumpStats();
             }
 
             if (intent.getAction().equals(GravityBoxSettings.ACTION_PREF_CLOCK_CHANGED)) {
@@ -329,7 +330,7 @@ public class ModStatusBar {
                     if (SysUiManagers.IconManager != null) {
                         SysUiManagers.IconManager.registerListener(mClock);
                     }
-                    mBroadcastSubReceivers.add(mClock);
+                    mBroadcastDispatcher.register(mClock);
                 }
                 setClockPosition(mPrefs.getBoolean(
                         GravityBoxSettings.PREF_KEY_STATUSBAR_CENTER_CLOCK, false));
@@ -414,7 +415,7 @@ public class ModStatusBar {
                 LinearLayout view = (LinearLayout) container.findViewById(scResId);
                 if (view != null) {
                     StatusbarSignalCluster sc = StatusbarSignalCluster.create(containerType, view, mPrefs);
-                    mBroadcastSubReceivers.add(sc);
+                    mBroadcastDispatcher.register(sc);
                     if (sc.supportsDataActivityIndicators()) {
                         sc.setNetworkController(XposedHelpers.getObjectField(
                                 mPhoneStatusBar, "mNetworkController"));
@@ -448,7 +449,7 @@ public class ModStatusBar {
             if (container != null) {
                 BatteryStyleController bsc = new BatteryStyleController(
                         containerType, container, mPrefs);
-                mBroadcastSubReceivers.add(bsc);
+                mBroadcastDispatcher.register(bsc);
             }
         } catch (Throwable t) {
             XposedBridge.log(t);
@@ -493,7 +494,7 @@ public class ModStatusBar {
             }
             if (container != null) {
                 BatteryBarView bbView = new BatteryBarView(containerType, container, mPrefs);
-                mBroadcastSubReceivers.add(bbView);
+                mBroadcastDispatcher.register(bbView);
                 mProgressBarCtrl.registerListener(bbView);
                 mStateChangeListeners.add(bbView);
             }
@@ -604,7 +605,7 @@ public class ModStatusBar {
                     mStatusBarView = (ViewGroup) XposedHelpers.getObjectField(mPhoneStatusBar, "mStatusBarView");
                     mContext = (Context) XposedHelpers.getObjectField(mPhoneStatusBar, "mContext");
                     mProgressBarCtrl = new ProgressBarController(mPrefs);
-                    mBroadcastSubReceivers.add(mProgressBarCtrl);
+                    mBroadcastDispatcher.register(mProgressBarCtrl);
 
                     if (SysUiManagers.AppLauncher != null) {
                         SysUiManagers.AppLauncher.setStatusBar(mPhoneStatusBar);
@@ -897,7 +898,7 @@ public class ModStatusBar {
             }
 
             // Status bar Bluetooth icon policy
-            mBroadcastSubReceivers.add(new SystemIconController(classLoader, prefs));
+            mBroadcastDispatcher.register(new SystemIconController(classLoader, prefs));
 
             // status bar state change handling
             try {
@@ -937,7 +938,7 @@ public class ModStatusBar {
                         NotificationWallpaper nw = 
                                 new NotificationWallpaper((FrameLayout) param.thisObject, prefs);
                         mStateChangeListeners.add(nw);
-                        mBroadcastSubReceivers.add(nw);
+                        mBroadcastDispatcher.register(nw);
                     }
                 });
             } catch (Throwable t) {
@@ -1109,9 +1110,7 @@ public class ModStatusBar {
 
         removeTrafficMeterView();
         if (mTrafficMeter != null) {
-            if (mBroadcastSubReceivers.contains(mTrafficMeter)) {
-                mBroadcastSubReceivers.remove(mTrafficMeter);
-            }
+            mBroadcastDispatcher.unregister(mTrafficMeter);
             if (SysUiManagers.IconManager != null) {
                 SysUiManagers.IconManager.unregisterListener(mTrafficMeter);
             }
@@ -1131,7 +1130,7 @@ public class ModStatusBar {
             if (mProgressBarCtrl != null) {
                 mProgressBarCtrl.registerListener(mTrafficMeter);
             }
-            mBroadcastSubReceivers.add(mTrafficMeter);
+            mBroadcastDispatcher.register(mTrafficMeter);
         }
     }
 
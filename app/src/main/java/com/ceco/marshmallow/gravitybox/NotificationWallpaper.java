@@ -37,6 +37,7 @@ import android.view.Surface;
 import android.widget.FrameLayout;
 
 class NotificationWallpaper implements BroadcastSubReceiver,
+                                       BroadcastSubReceiver.ActionFilter,
                                        StatusBarStateChangedListener {
     private static final String TAG = "GB:NotificationWallpaper";
     private static final boolean DEBUG = false;
@@ -149,6 +150,13 @@ class NotificationWallpaper implements BroadcastSubReceiver,
         }
     }
 
+    @Override
+    public String[] getBroadcastActions() {
+        return new String[] {
+            GravityBoxSettings.ACTION_NOTIF_BACKGROUND_CHANGED
+        };
+    }
+
     @Override
     public void onBroadcastReceived(Context context, Intent intent) {
         if (intent.getAction().equals(GravityBoxSettings.ACTION_NOTIF_BACKGROUND_CHANGED)) {
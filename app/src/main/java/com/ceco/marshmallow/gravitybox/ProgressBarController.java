@@ -18,7 +18,12 @@ package com.ceco.marshmallow.gravitybox;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 import android.app.Notification;
 import android.content.Context;
@@ -26,12 +31,13 @@ import android.content.Intent;
 import android.os.Parcel;
 import android.os.Parcelable;
 import android.service.notification.StatusBarNotification;
+import android.view.Choreographer;
 import android.widget.RemoteViews;
 import de.robv.android.xposed.XSharedPreferences;
 import de.robv.android.xposed.XposedBridge;
 import de.robv.android.xposed.XposedHelpers;
 
-public class ProgressBarController implements BroadcastSubReceiver {
+public class ProgressBarController implements BroadcastSubReceiver, BroadcastSubReceiver.ActionFilter {
     private static final String TAG = "GB:ProgressBarController";
     private static final boolean DEBUG = false;
 
@@ -54,6 +60,7 @@ public class ProgressBarController implements BroadcastSubReceiver {
     }
 
     public class ProgressInfo {
+        String id;
         boolean hasProgressBar;
         int progress;
         int max;
@@ -67,16 +74,63 @@ public class ProgressBarController implements BroadcastSubReceiver {
         public float getFraction() {
             return (max > 0 ? ((float)progress/(float)max) : 0f);
         }
+
+        public int getPercent() {
+            return Math.round(Math.min(getFraction(), 1f) * 100f);
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        void reset() {
+            hasProgressBar = false;
+            progress = 0;
+            max = 0;
+        }
     }
 
     public enum Mode { OFF, TOP, BOTTOM };
 
-    private String mId;
+    // aggregate progress is kept in per-mille units of each tracked item
+    private static final int AGGREGATE_ITEM_MAX = 1000;
+
+    // identifiers are cached per notification key as they are needed for every update
+    private static final String NO_IDENTIFIER = "";
+
+    private Map<String, ProgressInfo> mProgressList;
+    private Map<String, String> mIdentifiers;
+    private ProgressInfo mAggregateInfo;
+    private ProgressInfo mTmpInfo;
+    private int mLastDispatchedPercent = -1;
     private List<ProgressStateListener> mListeners;
     private Mode mMode;
+    private Choreographer mChoreographer;
+    private boolean mDispatchPending;
+
+    // listeners get at most one update per frame no matter how often
+    // tracked notifications get updated
+    private Choreographer.FrameCallback mDispatchCallback = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            mDispatchPending = false;
+            if (mProgressList.isEmpty()) return;
+            updateAggregateInfo();
+            final int percent = mAggregateInfo.getPercent();
+            if (percent == mLastDispatchedPercent) return;
+            mLastDispatchedPercent = percent;
+            if (DEBUG) log("dispatching progress: items=" + mProgressList.size() +
+                    "; fraction=" + mAggregateInfo.getFraction());
+            notifyProgressUpdated(mAggregateInfo);
+        }
+    };
 
     public ProgressBarController(XSharedPreferences prefs) {
         mListeners = new ArrayList<ProgressStateListener>();
+        mProgressList = new LinkedHashMap<String, ProgressInfo>();
+        mIdentifiers = new HashMap<String, String>();
+        mAggregateInfo = new ProgressInfo(true, 0, 0);
+        mTmpInfo = new ProgressInfo(false, 0, 0);
         mMode = Mode.valueOf(prefs.getString(GravityBoxSettings.PREF_KEY_STATUSBAR_DOWNLOAD_PROGRESS, "OFF"));
     }
 
@@ -138,6 +192,10 @@ public class ProgressBarController implements BroadcastSubReceiver {
         }
     }
 
+    public Collection<ProgressInfo> getProgressItems() {
+        return Collections.unmodifiableCollection(mProgressList.values());
+    }
+
     public void onNotificationAdded(StatusBarNotification statusBarNotif) {
         if (mMode == Mode.OFF) return;
 
@@ -146,51 +204,54 @@ public class ProgressBarController implements BroadcastSubReceiver {
             return;
         }
 
-        if (mId != null) {
-            if (DEBUG) log("onNotificationAdded: another download already registered");
-            return;
-        }
+        String id = getIdentifier(statusBarNotif);
+        if (id == null) return;
 
-        mId = getIdentifier(statusBarNotif);
-        if (mId != null) {
-            if (DEBUG) log("starting progress for " + mId);
-            startTracking();
-            updateProgress(statusBarNotif);
+        if (mProgressList.containsKey(id)) {
+            if (DEBUG) log("onNotificationAdded: " + id + " already registered");
+        } else {
+            if (DEBUG) log("starting progress for " + id);
+            startTracking(id);
         }
+        updateProgress(id, statusBarNotif);
     }
 
     public void onNotificationUpdated(StatusBarNotification statusBarNotif) {
-        if (mMode == Mode.OFF) return;
+        if (mMode == Mode.OFF || statusBarNotif == null) return;
 
-        if (mId == null) {
+        String id = getIdentifier(statusBarNotif);
+        if (id == null) return;
+
+        if (!mProgressList.containsKey(id)) {
             // treat it as if it was added, e.g. to show progress in case
             // feature has been enabled during already ongoing download
             onNotificationAdded(statusBarNotif);
             return;
         }
 
-        if (mId.equals(getIdentifier(statusBarNotif))) {
-            // if notification became clearable, stop tracking immediately
-            if (statusBarNotif.isClearable()) {
-                if (DEBUG) log("onNotificationUpdated: notification became clearable - stopping tracking");
-                stopTracking();
-            } else {
-                if (DEBUG) log("updating progress for " + mId);
-                updateProgress(statusBarNotif);
-            }
+        // if notification became clearable, stop tracking immediately
+        if (statusBarNotif.isClearable()) {
+            if (DEBUG) log("onNotificationUpdated: notification became clearable - stopping tracking");
+            stopTracking(id);
+        } else {
+            if (DEBUG) log("updating progress for " + id);
+            updateProgress(id, statusBarNotif);
         }
     }
 
     public void onNotificationRemoved(StatusBarNotification statusBarNotif) {
+        String id = getIdentifier(statusBarNotif);
+        if (statusBarNotif != null) {
+            mIdentifiers.remove(statusBarNotif.getKey());
+        }
         if (mMode == Mode.OFF) return;
 
-        if (mId == null) {
-            if (DEBUG) log("onNotificationRemoved: no download registered");
+        if (id == null || !mProgressList.containsKey(id)) {
+            if (DEBUG) log("onNotificationRemoved: download not registered");
             return;
-        } else if (mId.equals(getIdentifier(statusBarNotif))) {
-            if (DEBUG) log("finishing progress for " + mId);
-            stopTracking();
         }
+        if (DEBUG) log("finishing progress for " + id);
+        stopTracking(id);
     }
 
     private boolean verifyNotification(StatusBarNotification statusBarNotif) {
@@ -202,11 +263,21 @@ public class ProgressBarController implements BroadcastSubReceiver {
         return (n != null && 
                (SUPPORTED_PACKAGES.contains(statusBarNotif.getPackageName()) ||
                 n.extras.getBoolean(ModLedControl.NOTIF_EXTRA_PROGRESS_TRACKING)) &&
-                getProgressInfo(n).hasProgressBar);
+                getProgressInfo(n, mTmpInfo).hasProgressBar);
     }
 
     private String getIdentifier(StatusBarNotification statusBarNotif) {
         if (statusBarNotif == null) return null;
+        final String key = statusBarNotif.getKey();
+        String id = mIdentifiers.get(key);
+        if (id == null) {
+            id = createIdentifier(statusBarNotif);
+            mIdentifiers.put(key, id == null ? NO_IDENTIFIER : id);
+        }
+        return (id == NO_IDENTIFIER ? null : id);
+    }
+
+    private String createIdentifier(StatusBarNotification statusBarNotif) {
         String pkgName = statusBarNotif.getPackageName();
         if (SUPPORTED_PACKAGES.get(0).equals(pkgName)) {
             String tag = statusBarNotif.getTag();
@@ -220,29 +291,90 @@ public class ProgressBarController implements BroadcastSubReceiver {
         return null;
     }
 
-    private void startTracking() {
-        notifyProgressStarted(mId.startsWith(SUPPORTED_PACKAGES.get(1)) ||
-                mId.startsWith(SUPPORTED_PACKAGES.get(2)));
+    private void startTracking(String id) {
+        ProgressInfo pInfo = new ProgressInfo(false, 0, 0);
+        pInfo.id = id;
+        mProgressList.put(id, pInfo);
+        if (mProgressList.size() == 1) {
+            mLastDispatchedPercent = -1;
+            notifyProgressStarted(id.startsWith(SUPPORTED_PACKAGES.get(1)) ||
+                    id.startsWith(SUPPORTED_PACKAGES.get(2)));
+        }
     }
 
-    private void updateProgress(StatusBarNotification statusBarNotif) {
-        if (statusBarNotif != null) {
-            ProgressInfo pInfo = getProgressInfo(statusBarNotif.getNotification());
-            if (DEBUG) log("updateProgress: newScaleX=" + pInfo.getFraction());
-            notifyProgressUpdated(pInfo);
+    private void updateProgress(String id, StatusBarNotification statusBarNotif) {
+        ProgressInfo pInfo = mProgressList.get(id);
+        if (pInfo == null) return;
+        ProgressInfo newInfo = getProgressInfo(statusBarNotif.getNotification(), mTmpInfo);
+        // no need to bother listeners with changes they can't render
+        if (pInfo.max > 0 && pInfo.hasProgressBar == newInfo.hasProgressBar &&
+                pInfo.getPercent() == newInfo.getPercent()) {
+            return;
+        }
+        pInfo.hasProgressBar = newInfo.hasProgressBar;
+        pInfo.progress = newInfo.progress;
+        pInfo.max = newInfo.max;
+        if (DEBUG) log("updateProgress: " + id + "; fraction=" + pInfo.getFraction());
+        scheduleDispatch();
+    }
+
+    private void stopTracking(String id) {
+        if (mProgressList.remove(id) == null) return;
+        if (mProgressList.isEmpty()) {
+            cancelDispatch();
+            notifyProgressStopped();
+        } else {
+            scheduleDispatch();
         }
     }
 
     private void stopTracking() {
-        mId = null;
+        if (mProgressList.isEmpty()) return;
+        mProgressList.clear();
+        cancelDispatch();
         notifyProgressStopped();
     }
 
-    private ProgressInfo getProgressInfo(Notification n) {
-        ProgressInfo pInfo = new ProgressInfo(false, 0, 0);
+    private void updateAggregateInfo() {
+        int progress = 0;
+        for (ProgressInfo pInfo : mProgressList.values()) {
+            progress += Math.round(Math.min(pInfo.getFraction(), 1f) * AGGREGATE_ITEM_MAX);
+        }
+        mAggregateInfo.progress = progress;
+        mAggregateInfo.max = mProgressList.size() * AGGREGATE_ITEM_MAX;
+    }
+
+    private void scheduleDispatch() {
+        if (mDispatchPending) return;
+        if (mChoreographer == null) {
+            mChoreographer = Choreographer.getInstance();
+        }
+        mChoreographer.postFrameCallback(mDispatchCallback);
+        mDispatchPending = true;
+    }
+
+    private void cancelDispatch() {
+        if (mDispatchPending) {
+            mChoreographer.removeFrameCallback(mDispatchCallback);
+            mDispatchPending = false;
+        }
+    }
+
+    private ProgressInfo getProgressInfo(Notification n, ProgressInfo pInfo) {
+        pInfo.reset();
         if (n == null) return pInfo;
 
-        // We have to extract the information from the content view
+        // Notifications built using Notification.Builder carry progress in extras
+        if (n.extras != null && n.extras.containsKey(Notification.EXTRA_PROGRESS_MAX)) {
+            pInfo.max = n.extras.getInt(Notification.EXTRA_PROGRESS_MAX);
+            pInfo.progress = n.extras.getInt(Notification.EXTRA_PROGRESS);
+            pInfo.hasProgressBar = pInfo.max > 0 &&
+                    !n.extras.getBoolean(Notification.EXTRA_PROGRESS_INDETERMINATE);
+            if (pInfo.hasProgressBar) return pInfo;
+            pInfo.reset();
+        }
+
+        // Otherwise we have to extract the information from the content view
         RemoteViews views = n.bigContentView;
         if (views == null) views = n.contentView;
         if (views == null) return pInfo;
@@ -287,6 +419,13 @@ public class ProgressBarController implements BroadcastSubReceiver {
         return pInfo;
     }
 
+    @Override
+    public String[] getBroadcastActions() {
+        return new String[] {
+            GravityBoxSettings.ACTION_PREF_STATUSBAR_DOWNLOAD_PROGRESS_CHANGED
+        };
+    }
+
     @Override
     public void onBroadcastReceived(Context context, Intent intent) {
         if (intent.getAction().equals(GravityBoxSettings.ACTION_PREF_STATUSBAR_DOWNLOAD_PROGRESS_CHANGED)) {
@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2017 Peter Gregus for GravityBox Project (C3C076@xda)
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ceco.marshmallow.gravitybox;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.os.SystemClock;
+import de.robv.android.xposed.XposedBridge;
+import de.robv.android.xposed.XposedHelpers;
+
+/*
+ * Fields and methods resolved once when hooks are installed and reused on hot paths.
+ * Resolution throws NoSuchFieldError/NoSuchMethodError right away so that ROMs
+ * lacking a member are detected at init rather than on each call.
+ * Accesses are counted per module; in debug mode rates are logged periodically.
+ */
+public class ReflectionAccessor {
+    private static final String TAG = "GB:ReflectionAccessor";
+    private static final boolean DEBUG = false;
+    private static final long STATS_INTERVAL = 10000;
+
+    private static final Map<String, AtomicLong> sCounters = new HashMap<>();
+    private static long sStatsTime = SystemClock.elapsedRealtime();
+
+    private static void log(String message) {
+        XposedBridge.log(TAG + ": " + message);
+    }
+
+    private static synchronized AtomicLong getCounter(String module) {
+        AtomicLong counter = sCounters.get(module);
+        if (counter == null) {
+            counter = new AtomicLong();
+            sCounters.put(module, counter);
+        }
+        return counter;
+    }
+
+    private static void onAccess(AtomicLong counter) {
+        counter.incrementAndGet();
+        if (DEBUG) {
+            final long now = SystemClock.elapsedRealtime();
+            if (now - sStatsTime >= STATS_INTERVAL) {
+                logStats(now);
+            }
+        }
+    }
+
+    private static synchronized void logStats(long now) {
+        final long elapsed = now - sStatsTime;
+        if (elapsed < STATS_INTERVAL) return;
+        for (Map.Entry<String, AtomicLong> entry : sCounters.entrySet()) {
+            final long count = entry.getValue().getAndSet(0);
+            log(entry.getKey() + ": " + (count * 1000f / elapsed) + " accesses/s");
+        }
+        sStatsTime = now;
+    }
+
+    public static class FieldAccessor {
+        private final Field mField;
+        private final AtomicLong mCounter;
+
+        private FieldAccessor(Field field, AtomicLong counter) {
+            mField = field;
+            mCounter = counter;
+        }
+
+        public Object get(Object obj) {
+            onAccess(mCounter);
+            try {
+                return mField.get(obj);
+            } catch (IllegalAccessException e) {
+                throw new IllegalAccessError(e.getMessage());
+            }
+        }
+
+        public int getInt(Object obj) {
+            onAccess(mCounter);
+            try {
+                return mField.getInt(obj);
+            } catch (IllegalAccessException e) {
+                throw new IllegalAccessError(e.getMessage());
+            }
+        }
+
+        public void set(Object obj, Object value) {
+            onAccess(mCounter);
+            try {
+                mField.set(obj, value);
+            } catch (IllegalAccessException e) {
+                throw new IllegalAccessError(e.getMessage());
+            }
+        }
+    }
+
+    public static class MethodAccessor {
+        private final Method mMethod;
+        private final AtomicLong mCounter;
+
+        private MethodAccessor(Method method, AtomicLong counter) {
+            mMethod = method;
+            mCounter = counter;
+        }
+
+        public Object invoke(Object obj, Object... args) {
+            onAccess(mCounter);
+            try {
+                return mMethod.invoke(obj, args);
+            } catch (IllegalAccessException e) {
+                throw new IllegalAccessError(e.getMessage());
+            } catch (InvocationTargetException e) {
+                throw new XposedHelpers.InvocationTargetError(e.getCause());
+            }
+        }
+    }
+
+    public static FieldAccessor field(String module, Class<?> clazz, String fieldName) {
+        return new FieldAccessor(XposedHelpers.findField(clazz, fieldName), getCounter(module));
+    }
+
+    // parameter types can be given as classes or class names like in XposedHelpers
+    public static MethodAccessor method(String module, Class<?> clazz, String methodName,
+            Object... parameterTypes) {
+        return new MethodAccessor(XposedHelpers.findMethodExact(clazz, methodName, parameterTypes),
+                getCounter(module));
+    }
+
+    // looks for method in class hierarchy, for members declared by superclasses
+    public static MethodAccessor methodInHierarchy(String module, Class<?> clazz, String methodName,
+            Class<?>... parameterTypes) {
+        return new MethodAccessor(XposedHelpers.findMethodBestMatch(clazz, methodName, parameterTypes),
+                getCounter(module));
+    }
+}
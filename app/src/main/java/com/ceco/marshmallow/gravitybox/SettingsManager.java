@@ -17,19 +17,29 @@ package com.ceco.marshmallow.gravitybox;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.os.AsyncTask;
 import android.os.Environment;
 import android.widget.Toast;
 import com.ceco.marshmallow.gravitybox.R;
+import com.ceco.marshmallow.gravitybox.ledcontrol.LedSettingsStore;
 
 public class SettingsManager {
     private static final String BACKUP_PATH = Environment.getExternalStorageDirectory() + "/GravityBox/backup";
     private static final String BACKUP_OK_FLAG_OBSOLETE = BACKUP_PATH + "/.backup_ok";
     private static final String BACKUP_OK_FLAG = BACKUP_PATH + "/.backup_ok_lp";
     private static final String BACKUP_NO_MEDIA = BACKUP_PATH + "/.nomedia";
+    private static final String BACKUP_MANIFEST = BACKUP_PATH + "/.manifest";
+    private static final int COPY_THREADS = 3;
     private static final String LP_PREFERENCES = "com.ceco.lollipop.gravitybox_preferences.xml";
 
     private static Context mContext;
@@ -46,206 +56,349 @@ public class SettingsManager {
         return mInstance;
     }
 
-    public boolean backupSettings() {
-        File targetDir = new File(BACKUP_PATH);
-        if (!(targetDir.exists() && targetDir.isDirectory())) {
-            if (!targetDir.mkdirs()) {
-                Toast.makeText(mContext, R.string.settings_backup_failed, Toast.LENGTH_LONG).show();
-                return false;
-            }
-        }
+    public interface ProgressListener {
+        void onProgressChanged(int current, int max);
+        void onFinished(boolean success);
+    }
 
-        // create .nomedia file to disable media scanning on backup folder
-        File noMediaFile = new File(BACKUP_NO_MEDIA);
-        if (!noMediaFile.exists()) {
-            try {
-                noMediaFile.createNewFile();
-            } catch (IOException ioe) { }
-        }
+    private static class CopyItem {
+        final File source;
+        final File dest;
+        // path relative to backup folder used as manifest key
+        final String path;
 
-        // delete backup OK flag file first (if exists)
-        File backupOkFlagFile = new File(BACKUP_OK_FLAG);
-        if (backupOkFlagFile.exists()) {
-            backupOkFlagFile.delete();
+        CopyItem(File source, File dest, String path) {
+            this.source = source;
+            this.dest = dest;
+            this.path = path;
         }
+    }
 
-        // preferences
-        String[] prefsFileNames = new String[] { 
+    private static String[] getPrefsFileNames() {
+        return new String[] { 
                 mContext.getPackageName() + "_preferences.xml",
                 "ledcontrol.xml",
                 "quiet_hours.xml"
         };
-        for (String prefsFileName : prefsFileNames) {
-            File prefsFile = new File(mContext.getFilesDir() + "/../shared_prefs/" + prefsFileName);
-            if (prefsFile.exists()) {
-                File prefsDestFile = new File(BACKUP_PATH + "/" + prefsFileName);
+    }
+
+    private static boolean ensureDirectory(File dir, boolean worldReadable) {
+        if (dir.exists() && dir.isDirectory()) return true;
+        if (!dir.mkdirs()) return false;
+        if (worldReadable) {
+            dir.setExecutable(true, false);
+            dir.setReadable(true, false);
+        }
+        return true;
+    }
+
+    /*
+     * Copies items in parallel off the main thread reporting progress to listener.
+     * Result of doInBackground is resource ID of message to be toasted.
+     */
+    private abstract class CopyTask extends AsyncTask<Void, Integer, Integer> {
+        private ProgressListener mListener;
+        private AtomicInteger mProgress = new AtomicInteger();
+
+        CopyTask(ProgressListener listener) {
+            mListener = listener;
+        }
+
+        protected abstract boolean copy(CopyItem item);
+        protected abstract boolean isSuccess(int messageId);
+
+        protected boolean copyAll(final List<CopyItem> items) {
+            publishProgress(0, items.size());
+            ExecutorService executor = Executors.newFixedThreadPool(COPY_THREADS);
+            List<Future<Boolean>> results = new ArrayList<>(items.size());
+            for (final CopyItem item : items) {
+                results.add(executor.submit(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() {
+                        boolean ok = copy(item);
+                        publishProgress(mProgress.incrementAndGet(), items.size());
+                        return ok;
+                    }
+                }));
+            }
+            executor.shutdown();
+
+            boolean success = true;
+            for (Future<Boolean> result : results) {
                 try {
-                    Utils.copyFile(prefsFile, prefsDestFile);
-                } catch (IOException e) {
+                    success &= result.get();
+                } catch (Exception e) {
                     e.printStackTrace();
-                    Toast.makeText(mContext, R.string.settings_backup_failed, Toast.LENGTH_LONG).show();
-                    return false;
+                    success = false;
                 }
-            } else if (prefsFileName.equals(prefsFileNames[0])) {
-                // normally, this should never happen
-                Toast.makeText(mContext, R.string.settings_backup_no_prefs, Toast.LENGTH_LONG).show();
-                return false;
             }
+            return success;
         }
 
-        // other files
-        String targetFilesDirPath = BACKUP_PATH + "/files";
-        File targetFilesDir = new File(targetFilesDirPath);
-        if (!(targetFilesDir.exists() && targetFilesDir.isDirectory())) {
-            if (!targetFilesDir.mkdirs()) {
-                Toast.makeText(mContext, R.string.settings_backup_failed, Toast.LENGTH_LONG).show();
-                return false;
+        @Override
+        protected void onProgressUpdate(Integer... values) {
+            if (mListener != null) {
+                mListener.onProgressChanged(values[0], values[1]);
             }
         }
-        File[] fileList = mContext.getFilesDir().listFiles();
-        if (fileList != null) {
-            for (File f : fileList) {
-                if (f.isFile() && !f.getName().equals("kis_image.png")) {
-                    File outFile = new File(targetFilesDirPath + "/" + f.getName());
-                    try {
-                        Utils.copyFile(f, outFile);
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                        Toast.makeText(mContext, R.string.settings_backup_failed, Toast.LENGTH_LONG).show();
-                        return false;
-                    }
-                } else if (f.isDirectory() && f.getName().equals("app_picker")) {
-                    String appPickerFilesDirPath = targetFilesDirPath + "/app_picker";
-                    File appPickerFilesDir = new File(appPickerFilesDirPath);
-                    if (!(appPickerFilesDir.exists() && appPickerFilesDir.isDirectory())) {
-                        if (!appPickerFilesDir.mkdirs()) {
-                            Toast.makeText(mContext, R.string.settings_backup_failed, Toast.LENGTH_LONG).show();
-                            return false;
+
+        @Override
+        protected void onPostExecute(Integer messageId) {
+            final boolean success = isSuccess(messageId);
+            Toast.makeText(mContext, messageId,
+                    success ? Toast.LENGTH_SHORT : Toast.LENGTH_LONG).show();
+            if (mListener != null) {
+                mListener.onFinished(success);
+            }
+        }
+    }
+
+    /*
+     * Backup is incremental: files whose size and modification time match the manifest
+     * are skipped without being read, files with changed timestamps are hashed
+     * and copied only if their content differs from the backed up copy.
+     */
+    private class BackupTask extends CopyTask {
+        private BackupManifest mOldManifest;
+        private BackupManifest mNewManifest;
+
+        BackupTask(ProgressListener listener) {
+            super(listener);
+        }
+
+        @Override
+        protected Integer doInBackground(Void... params) {
+            File targetDir = new File(BACKUP_PATH);
+            if (!ensureDirectory(targetDir, false)) {
+                return R.string.settings_backup_failed;
+            }
+
+            // create .nomedia file to disable media scanning on backup folder
+            File noMediaFile = new File(BACKUP_NO_MEDIA);
+            if (!noMediaFile.exists()) {
+                try {
+                    noMediaFile.createNewFile();
+                } catch (IOException ioe) { }
+            }
+
+            // delete backup OK flag file first (if exists)
+            File backupOkFlagFile = new File(BACKUP_OK_FLAG);
+            if (backupOkFlagFile.exists()) {
+                backupOkFlagFile.delete();
+            }
+
+            List<CopyItem> items = new ArrayList<>();
+
+            // preferences
+            String[] prefsFileNames = getPrefsFileNames();
+            for (String prefsFileName : prefsFileNames) {
+                File prefsFile = new File(mContext.getFilesDir() + "/../shared_prefs/" + prefsFileName);
+                if (prefsFile.exists()) {
+                    items.add(new CopyItem(prefsFile,
+                            new File(BACKUP_PATH + "/" + prefsFileName), prefsFileName));
+                } else if (prefsFileName.equals(prefsFileNames[0])) {
+                    // normally, this should never happen
+                    return R.string.settings_backup_no_prefs;
+                }
+            }
+
+            // other files
+            String targetFilesDirPath = BACKUP_PATH + "/files";
+            if (!ensureDirectory(new File(targetFilesDirPath), false)) {
+                return R.string.settings_backup_failed;
+            }
+            File[] fileList = mContext.getFilesDir().listFiles();
+            if (fileList != null) {
+                for (File f : fileList) {
+                    if (f.isFile() && !f.getName().equals("kis_image.png") &&
+                            !f.getName().equals(LedSettingsStore.FILE_NAME)) {
+                        items.add(new CopyItem(f, new File(targetFilesDirPath + "/" + f.getName()),
+                                "files/" + f.getName()));
+                    } else if (f.isDirectory() && f.getName().equals("app_picker")) {
+                        String appPickerFilesDirPath = targetFilesDirPath + "/app_picker";
+                        if (!ensureDirectory(new File(appPickerFilesDirPath), false)) {
+                            return R.string.settings_backup_failed;
                         }
-                    }
-                    File[] appPickerfileList = f.listFiles();
-                    if (appPickerfileList != null) {
-                        for (File apf : appPickerfileList) {
-                            File outFile = new File(appPickerFilesDirPath + "/" + apf.getName());
-                            try {
-                                Utils.copyFile(apf, outFile);
-                            } catch (IOException e) {
-                                e.printStackTrace();
-                                Toast.makeText(mContext, R.string.settings_backup_failed, Toast.LENGTH_LONG).show();
-                                return false;
+                        File[] appPickerfileList = f.listFiles();
+                        if (appPickerfileList != null) {
+                            for (File apf : appPickerfileList) {
+                                items.add(new CopyItem(apf,
+                                        new File(appPickerFilesDirPath + "/" + apf.getName()),
+                                        "files/app_picker/" + apf.getName()));
                             }
                         }
                     }
                 }
             }
-        }
 
-        try {
-            backupOkFlagFile.createNewFile();
-        } catch (IOException e) {
-            e.printStackTrace();
-            Toast.makeText(mContext, R.string.settings_backup_failed, Toast.LENGTH_LONG).show();
-            return false;
-        }
-       
-        Toast.makeText(mContext, R.string.settings_backup_success, Toast.LENGTH_SHORT).show();
-        return true;
-    }
+            mOldManifest = new BackupManifest(new File(BACKUP_MANIFEST));
+            mOldManifest.load();
+            mNewManifest = new BackupManifest(new File(BACKUP_MANIFEST));
+            if (!copyAll(items)) {
+                return R.string.settings_backup_failed;
+            }
 
-    public boolean isBackupAvailable() {
-        File backupOkFlagFile = new File(BACKUP_OK_FLAG);
-        return backupOkFlagFile.exists();
-    }
+            // drop backed up files that no longer exist
+            for (String path : mOldManifest.getEntries().keySet()) {
+                if (mNewManifest.get(path) == null) {
+                    new File(BACKUP_PATH + "/" + path).delete();
+                }
+            }
 
-    public boolean isBackupObsolete() {
-        return new File(BACKUP_OK_FLAG_OBSOLETE).exists() &&
-                !isBackupAvailable();
-    }
+            try {
+                mNewManifest.save();
+                backupOkFlagFile.createNewFile();
+            } catch (IOException e) {
+                e.printStackTrace();
+                return R.string.settings_backup_failed;
+            }
 
-    public boolean restoreSettings() {
-        if (!isBackupAvailable()) {
-            Toast.makeText(mContext, R.string.settings_restore_no_backup, Toast.LENGTH_SHORT).show();
-            return false;
+            return R.string.settings_backup_success;
         }
 
-        // preferences
-        String[] prefsFileNames = new String[] { 
-                mContext.getPackageName() + "_preferences.xml",
-                "ledcontrol.xml",
-                "quiet_hours.xml"
-        };
-        for (String prefsFileName : prefsFileNames) {
-            File prefsFile = new File(BACKUP_PATH + "/" + prefsFileName);
-            // try LP preferences if no MM prefs file exists
-            if (prefsFileName.equals(prefsFileNames[0]) && !prefsFile.exists())
-                prefsFile = new File(BACKUP_PATH + "/" + LP_PREFERENCES);
-            if (prefsFile.exists()) {
-                File prefsDestFile = new File(mContext.getFilesDir() + "/../shared_prefs/" + prefsFileName);
-                try {
-                    Utils.copyFile(prefsFile, prefsDestFile);
-                    prefsDestFile.setReadable(true, false);
-                } catch (IOException e) {
-                    e.printStackTrace();
-                    Toast.makeText(mContext, R.string.settings_restore_failed, Toast.LENGTH_LONG).show();
-                    return false;
+        @Override
+        protected boolean copy(CopyItem item) {
+            final long size = item.source.length();
+            final long lastModified = item.source.lastModified();
+            try {
+                BackupManifest.Entry entry = mOldManifest.get(item.path);
+                if (entry != null && entry.size == size && item.dest.length() == size) {
+                    if (entry.lastModified == lastModified) {
+                        mNewManifest.put(item.path, entry);
+                        return true;
+                    }
+                    String hash = BackupManifest.hashFile(item.source);
+                    if (hash.equals(entry.hash)) {
+                        mNewManifest.put(item.path, new BackupManifest.Entry(size, lastModified, hash));
+                        return true;
+                    }
                 }
-            } else if (prefsFileName.equals(prefsFileNames[0])) {
-                Toast.makeText(mContext, R.string.settings_restore_no_backup, Toast.LENGTH_SHORT).show();
+                String hash = BackupManifest.copyFile(item.source, item.dest);
+                mNewManifest.put(item.path, new BackupManifest.Entry(size, lastModified, hash));
+                return true;
+            } catch (IOException e) {
+                e.printStackTrace();
                 return false;
             }
         }
 
-        // other files
-        String targetFilesDirPath = mContext.getFilesDir().getAbsolutePath();
-        File targetFilesDir = new File(targetFilesDirPath);
-        if (!(targetFilesDir.exists() && targetFilesDir.isDirectory())) {
-            if (targetFilesDir.mkdirs()) {
-                targetFilesDir.setExecutable(true, false);
-                targetFilesDir.setReadable(true, false);
-            }
+        @Override
+        protected boolean isSuccess(int messageId) {
+            return (messageId == R.string.settings_backup_success);
         }
-        File[] fileList = new File(BACKUP_PATH + "/files").listFiles();
-        if (fileList != null) {
-            for (File f : fileList) {
-                if (f.isFile()) {
-                    File outFile = new File(targetFilesDirPath + "/" + f.getName());
-                    try {
-                        Utils.copyFile(f, outFile);
-                        outFile.setReadable(true, false);
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                        Toast.makeText(mContext, R.string.settings_restore_failed, Toast.LENGTH_LONG).show();
-                        return false;
-                    }
-                } else if (f.isDirectory() && f.getName().equals("app_picker")) {
-                    String appPickerFilesDirPath = targetFilesDirPath + "/app_picker";
-                    File appPickerFilesDir = new File(appPickerFilesDirPath);
-                    if (!(appPickerFilesDir.exists() && appPickerFilesDir.isDirectory())) {
-                        if (appPickerFilesDir.mkdirs()) {
-                            appPickerFilesDir.setExecutable(true, false);
-                            appPickerFilesDir.setReadable(true, false);
-                        }
-                    }
-                    File[] appPickerfileList = f.listFiles();
-                    if (appPickerfileList != null) {
-                        for (File apf : appPickerfileList) {
-                            File outFile = new File(appPickerFilesDirPath + "/" + apf.getName());
-                            try {
-                                Utils.copyFile(apf, outFile);
-                                outFile.setReadable(true, false);
-                            } catch (IOException e) {
-                                e.printStackTrace();
-                                Toast.makeText(mContext, R.string.settings_restore_failed, Toast.LENGTH_LONG).show();
-                                return true;
+    }
+
+    /*
+     * Restore skips files whose current content already matches the backed up one.
+     * Backups made without manifest are restored completely.
+     */
+    private class RestoreTask extends CopyTask {
+        private BackupManifest mManifest;
+
+        RestoreTask(ProgressListener listener) {
+            super(listener);
+        }
+
+        @Override
+        protected Integer doInBackground(Void... params) {
+            if (!isBackupAvailable()) {
+                return R.string.settings_restore_no_backup;
+            }
+
+            List<CopyItem> items = new ArrayList<>();
+
+            // preferences
+            String[] prefsFileNames = getPrefsFileNames();
+            for (String prefsFileName : prefsFileNames) {
+                String path = prefsFileName;
+                File prefsFile = new File(BACKUP_PATH + "/" + path);
+                // try LP preferences if no MM prefs file exists
+                if (prefsFileName.equals(prefsFileNames[0]) && !prefsFile.exists()) {
+                    path = LP_PREFERENCES;
+                    prefsFile = new File(BACKUP_PATH + "/" + path);
+                }
+                if (prefsFile.exists()) {
+                    items.add(new CopyItem(prefsFile, new File(mContext.getFilesDir() +
+                            "/../shared_prefs/" + prefsFileName), path));
+                } else if (prefsFileName.equals(prefsFileNames[0])) {
+                    return R.string.settings_restore_no_backup;
+                }
+            }
+
+            // binary LED settings store gets rebuilt from restored ledcontrol.xml on next boot
+            new File(mContext.getFilesDir(), LedSettingsStore.FILE_NAME).delete();
+
+            // other files
+            String targetFilesDirPath = mContext.getFilesDir().getAbsolutePath();
+            ensureDirectory(new File(targetFilesDirPath), true);
+            File[] fileList = new File(BACKUP_PATH + "/files").listFiles();
+            if (fileList != null) {
+                for (File f : fileList) {
+                    if (f.isFile() && !f.getName().equals(LedSettingsStore.FILE_NAME)) {
+                        items.add(new CopyItem(f, new File(targetFilesDirPath + "/" + f.getName()),
+                                "files/" + f.getName()));
+                    } else if (f.isDirectory() && f.getName().equals("app_picker")) {
+                        String appPickerFilesDirPath = targetFilesDirPath + "/app_picker";
+                        ensureDirectory(new File(appPickerFilesDirPath), true);
+                        File[] appPickerfileList = f.listFiles();
+                        if (appPickerfileList != null) {
+                            for (File apf : appPickerfileList) {
+                                items.add(new CopyItem(apf,
+                                        new File(appPickerFilesDirPath + "/" + apf.getName()),
+                                        "files/app_picker/" + apf.getName()));
                             }
                         }
                     }
                 }
             }
+
+            mManifest = new BackupManifest(new File(BACKUP_MANIFEST));
+            mManifest.load();
+            if (!copyAll(items)) {
+                return R.string.settings_restore_failed;
+            }
+
+            return R.string.settings_restore_success;
         }
 
-        Toast.makeText(mContext, R.string.settings_restore_success, Toast.LENGTH_SHORT).show();
-        return true;
+        @Override
+        protected boolean copy(CopyItem item) {
+            try {
+                BackupManifest.Entry entry = mManifest.get(item.path);
+                if (entry == null || !item.dest.exists() || item.dest.length() != entry.size ||
+                        !entry.hash.equals(BackupManifest.hashFile(item.dest))) {
+                    BackupManifest.copyFile(item.source, item.dest);
+                }
+                item.dest.setReadable(true, false);
+                return true;
+            } catch (IOException e) {
+                e.printStackTrace();
+                return false;
+            }
+        }
+
+        @Override
+        protected boolean isSuccess(int messageId) {
+            return (messageId == R.string.settings_restore_success);
+        }
+    }
+
+    public void backupSettings(ProgressListener listener) {
+        new BackupTask(listener).execute();
+    }
+
+    public boolean isBackupAvailable() {
+        File backupOkFlagFile = new File(BACKUP_OK_FLAG);
+        return backupOkFlagFile.exists();
+    }
+
+    public boolean isBackupObsolete() {
+        return new File(BACKUP_OK_FLAG_OBSOLETE).exists() &&
+                !isBackupAvailable();
+    }
+
+    public void restoreSettings(ProgressListener listener) {
+        new RestoreTask(listener).execute();
     }
 
     public void fixFolderPermissionsAsync() {
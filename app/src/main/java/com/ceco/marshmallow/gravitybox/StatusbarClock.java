@@ -38,7 +38,8 @@ import android.text.style.RelativeSizeSpan;
 import android.view.View;
 import android.widget.TextView;
 
-public class StatusbarClock implements IconManagerListener, BroadcastSubReceiver {
+public class StatusbarClock implements IconManagerListener, BroadcastSubReceiver,
+                                       BroadcastSubReceiver.ActionFilter {
     private static final String TAG = "GB:StatusbarClock";
     private static final boolean DEBUG = false;
 
@@ -222,6 +223,13 @@ public class StatusbarClock implements IconManagerListener, BroadcastSubReceiver
         }
     }
 
+    @Override
+    public String[] getBroadcastActions() {
+        return new String[] {
+            GravityBoxSettings.ACTION_PREF_CLOCK_CHANGED
+        };
+    }
+
     @Override
     public void onBroadcastReceived(Context context, Intent intent) {
         if (intent.getAction().equals(GravityBoxSettings.ACTION_PREF_CLOCK_CHANGED)) {
@@ -51,7 +51,8 @@ import android.widget.FrameLayout;
 import android.widget.ImageView;
 import android.widget.LinearLayout;
 
-public class StatusbarSignalCluster implements BroadcastSubReceiver, IconManagerListener {
+public class StatusbarSignalCluster implements BroadcastSubReceiver, BroadcastSubReceiver.ActionFilter,
+                                               IconManagerListener {
     public static final String TAG = "GB:StatusbarSignalCluster";
     protected static final boolean DEBUG = false;
 
@@ -507,6 +508,14 @@ public class StatusbarSignalCluster implements BroadcastSubReceiver, IconManager
         }
     }
 
+    @Override
+    public String[] getBroadcastActions() {
+        return new String[] {
+            GravityBoxSettings.ACTION_PREF_BATTERY_STYLE_CHANGED,
+            GravityBoxSettings.ACTION_PREF_BATTERY_PERCENT_TEXT_CHANGED
+        };
+    }
+
     @Override
     public void onBroadcastReceived(Context context, Intent intent) {
         if (intent.getAction().equals(GravityBoxSettings.ACTION_PREF_BATTERY_STYLE_CHANGED) &&
@@ -23,7 +23,7 @@ import de.robv.android.xposed.XSharedPreferences;
 import de.robv.android.xposed.XposedBridge;
 import de.robv.android.xposed.XposedHelpers;
 
-public class SystemIconController implements BroadcastSubReceiver {
+public class SystemIconController implements BroadcastSubReceiver, BroadcastSubReceiver.ActionFilter {
     private static final String TAG = "GB:SystemIconController";
     private static final boolean DEBUG = false;
 
@@ -142,6 +142,13 @@ public class SystemIconController implements BroadcastSubReceiver {
         }
     }
 
+    @Override
+    public String[] getBroadcastActions() {
+        return new String[] {
+            GravityBoxSettings.ACTION_PREF_SYSTEM_ICON_CHANGED
+        };
+    }
+
     @Override
     public void onBroadcastReceived(Context context, Intent intent) {
         if (intent.getAction().equals(GravityBoxSettings.ACTION_PREF_SYSTEM_ICON_CHANGED)) {
@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2017 Peter Gregus for GravityBox Project (C3C076@xda)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ceco.marshmallow.gravitybox;
+
+/*
+ * Keeps ring buffer of traffic samples per network category
+ * and provides rolling averages over last 1, 5 or 15 minutes
+ */
+public class TrafficAccounting {
+    public static final int CATEGORY_ALL = 0;
+    public static final int CATEGORY_WIFI = 1;
+    public static final int CATEGORY_MOBILE = 2;
+    public static final int CATEGORY_VPN = 3;
+    public static final int CATEGORY_COUNT = 4;
+
+    public static final long WINDOW_1M = 60000;
+    public static final long WINDOW_5M = 300000;
+    public static final long WINDOW_15M = 900000;
+
+    // enough for 15 minutes of samples at fastest sampling rate
+    private static final int CAPACITY = 901;
+
+    private final long[] mTime = new long[CAPACITY];
+    private final long[][] mRx = new long[CATEGORY_COUNT][CAPACITY];
+    private final long[][] mTx = new long[CATEGORY_COUNT][CAPACITY];
+    private final long[] mLastRx = new long[CATEGORY_COUNT];
+    private final long[] mLastTx = new long[CATEGORY_COUNT];
+    private final long[] mAccRx = new long[CATEGORY_COUNT];
+    private final long[] mAccTx = new long[CATEGORY_COUNT];
+    private int mHead = -1;
+    private int mSize;
+
+    public static String getCategoryName(int category) {
+        switch (category) {
+            case CATEGORY_WIFI: return "WIFI";
+            case CATEGORY_MOBILE: return "MOBILE";
+            case CATEGORY_VPN: return "VPN";
+            default: return "ALL";
+        }
+    }
+
+    public static int getCategory(String name) {
+        for (int i = 0; i < CATEGORY_COUNT; i++) {
+            if (getCategoryName(i).equals(name)) return i;
+        }
+        return CATEGORY_ALL;
+    }
+
+    public void reset() {
+        mHead = -1;
+        mSize = 0;
+    }
+
+    /**
+     * Adds sample of cumulative per-category counters.
+     * Gaps between samples (e.g. screen off) are fine as counters keep counting.
+     * History is dropped when any counter goes backwards, e.g. when interface
+     * disappears on disconnect.
+     */
+    public void addSample(long time, long[] rx, long[] tx) {
+        if (mSize > 0) {
+            for (int c = 0; c < CATEGORY_COUNT; c++) {
+                if (rx[c] < mLastRx[c] || tx[c] < mLastTx[c]) {
+                    reset();
+                    break;
+                }
+            }
+        }
+        final boolean first = (mSize == 0);
+        for (int c = 0; c < CATEGORY_COUNT; c++) {
+            if (!first) {
+                mAccRx[c] += rx[c] - mLastRx[c];
+                mAccTx[c] += tx[c] - mLastTx[c];
+            }
+            mLastRx[c] = rx[c];
+            mLastTx[c] = tx[c];
+        }
+
+        mHead = (mHead + 1) % CAPACITY;
+        mTime[mHead] = time;
+        for (int c = 0; c < CATEGORY_COUNT; c++) {
+            mRx[c][mHead] = mAccRx[c];
+            mTx[c][mHead] = mAccTx[c];
+        }
+        if (mSize < CAPACITY) mSize++;
+    }
+
+    /**
+     * @return average rate in bytes per second over given window
+     * or over all samples available if they cover shorter period
+     */
+    public long getAverageRate(int category, boolean tx, long window) {
+        if (mSize < 2) return 0;
+
+        final long from = mTime[mHead] - window;
+        int oldest = mHead;
+        for (int i = 1; i < mSize; i++) {
+            int idx = (mHead - i + CAPACITY) % CAPACITY;
+            if (mTime[idx] < from) break;
+            oldest = idx;
+        }
+        if (oldest == mHead) return 0;
+
+        final long[][] data = tx ? mTx : mRx;
+        final long bytes = data[category][mHead] - data[category][oldest];
+        final long timeDelta = mTime[mHead] - mTime[oldest];
+        return (timeDelta > 0 ? bytes * 1000 / timeDelta : 0);
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2017 Peter Gregus for GravityBox Project (C3C076@xda)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ceco.marshmallow.gravitybox;
+
+import java.text.DecimalFormatSymbols;
+
+/*
+ * Formats traffic values into reusable buffer so that periodic
+ * traffic meter updates don't produce garbage.
+ * Digits and separators follow the default locale like DecimalFormat does.
+ */
+public class TrafficFormatter {
+    private final StringBuilder mBuilder = new StringBuilder(32);
+    private final char[] mDigits = new char[20];
+    private final char mZeroDigit;
+    private final char mDecimalSeparator;
+    private final char mGroupingSeparator;
+
+    public TrafficFormatter() {
+        DecimalFormatSymbols symbols = DecimalFormatSymbols.getInstance();
+        mZeroDigit = symbols.getZeroDigit();
+        mDecimalSeparator = symbols.getDecimalSeparator();
+        mGroupingSeparator = symbols.getGroupingSeparator();
+    }
+
+    public TrafficFormatter clear() {
+        mBuilder.setLength(0);
+        return this;
+    }
+
+    public TrafficFormatter append(char c) {
+        mBuilder.append(c);
+        return this;
+    }
+
+    public TrafficFormatter append(String s) {
+        mBuilder.append(s);
+        return this;
+    }
+
+    public TrafficFormatter appendInteger(long value, boolean grouping) {
+        if (value < 0) {
+            mBuilder.append('-');
+            value = -value;
+        }
+        int count = 0;
+        do {
+            mDigits[count++] = (char) (mZeroDigit + value % 10);
+            value /= 10;
+        } while (value > 0);
+        for (int i = count - 1; i >= 0; i--) {
+            mBuilder.append(mDigits[i]);
+            if (grouping && i > 0 && i % 3 == 0) {
+                mBuilder.append(mGroupingSeparator);
+            }
+        }
+        return this;
+    }
+
+    // one fractional digit; zero fraction is omitted unless keepZeroFraction is set
+    public TrafficFormatter appendDecimal(float value, boolean keepZeroFraction) {
+        if (value < 0) {
+            mBuilder.append('-');
+            value = -value;
+        }
+        final long tenths = Math.round(value * 10d);
+        appendInteger(tenths / 10, false);
+        final int fraction = (int) (tenths % 10);
+        if (fraction != 0 || keepZeroFraction) {
+            mBuilder.append(mDecimalSeparator);
+            mBuilder.append((char) (mZeroDigit + fraction));
+        }
+        return this;
+    }
+
+    // returned buffer is reused by subsequent calls
+    public CharSequence getText() {
+        return mBuilder;
+    }
+}
@@ -24,9 +24,6 @@ import android.os.SystemClock;
 import android.util.TypedValue;
 import android.view.View;
 
-import java.text.DecimalFormat;
-import java.text.NumberFormat;
-
 import com.ceco.marshmallow.gravitybox.R;
 
 import de.robv.android.xposed.XSharedPreferences;
@@ -47,12 +44,13 @@ public class TrafficMeter extends TrafficMeterAbstract {
     String mKB = "KB";
     String mMB = "MB";
     String mS = "s";
-
-    NumberFormat mDecimalFormat = new DecimalFormat("##0.0");
-    NumberFormat mIntegerFormat = NumberFormat.getIntegerInstance();
+    String[] mSpeedSuffix;
+    String[] mSummarySuffix;
+    TrafficFormatter mFormatter = new TrafficFormatter();
 
     public TrafficMeter(Context context) {
         super(context);
+        updateSuffixes();
     }
 
     @Override
@@ -62,6 +60,7 @@ public class TrafficMeter extends TrafficMeterAbstract {
         mKB = gbContext.getString(R.string.kilobyte_abbr);
         mMB = gbContext.getString(R.string.megabyte_abbr);
         mS = gbContext.getString(R.string.second_abbr);
+        updateSuffixes();
 
         try {
             int inactivityMode = Integer.valueOf(prefs.getString(
@@ -103,28 +102,30 @@ public class TrafficMeter extends TrafficMeterAbstract {
         }
     }
 
-    private String formatTraffic(long bytes, boolean speed) {
+    private void updateSuffixes() {
+        mSpeedSuffix = new String[] { mB + "/" + mS, mKB + "/" + mS, mMB + "/" + mS };
+        mSummarySuffix = new String[] { mB + ")", mKB + ")", mMB + ")" };
+    }
+
+    // returned text is reused by subsequent calls
+    private CharSequence formatTraffic(long bytes, boolean speed) {
+        final String[] suffix = speed ? mSpeedSuffix : mSummarySuffix;
+        mFormatter.clear();
+        if (!speed) {
+            mFormatter.append('(');
+        }
         if (bytes > 10485760) { // 1024 * 1024 * 10
-            return (speed ? "" : "(")
-                    + mIntegerFormat.format(bytes / 1048576)
-                    + (speed ? mMB + "/" + mS : mMB + ")");
+            mFormatter.appendInteger(bytes / 1048576, true).append(suffix[2]);
         } else if (bytes > 1048576) { // 1024 * 1024
-            return (speed ? "" : "(")
-                    + mDecimalFormat.format(((float) bytes) / 1048576f)
-                    + (speed ? mMB + "/" + mS : mMB + ")");
+            mFormatter.appendDecimal(((float) bytes) / 1048576f, true).append(suffix[2]);
         } else if (bytes > 10240) { // 1024 * 10
-            return (speed ? "" : "(")
-                    + mIntegerFormat.format(bytes / 1024)
-                    + (speed ? mKB + "/" + mS : mKB + ")");
+            mFormatter.appendInteger(bytes / 1024, true).append(suffix[1]);
         } else if (bytes > 1024) { // 1024
-            return (speed ? "" : "(")
-                    + mDecimalFormat.format(((float) bytes) / 1024f)
-                    + (speed ? mKB + "/" + mS : mKB + ")");
+            mFormatter.appendDecimal(((float) bytes) / 1024f, true).append(suffix[1]);
         } else {
-            return (speed ? "" : "(")
-                    + mIntegerFormat.format(bytes)
-                    + (speed ? mB + "/" + mS : mB + ")");
+            mFormatter.appendInteger(bytes, true).append(suffix[0]);
         }
+        return mFormatter.getText();
     }
 
     Runnable mRunnable = new Runnable() {
@@ -153,7 +154,7 @@ public class TrafficMeter extends TrafficMeterAbstract {
                             currentRxBytes - mTrafficBurstStartBytes;
 
                 if (trafficBurstBytes != 0 && mTrafficMeterSummaryTime != 0) {
-                    setText(formatTraffic(trafficBurstBytes, false));
+                    setTrafficText(formatTraffic(trafficBurstBytes, false));
 
                     if (DEBUG) log("Traffic burst ended: " + trafficBurstBytes + "B in "
                                     + (SystemClock.elapsedRealtime() - mTrafficBurstStartTime)
@@ -168,7 +169,7 @@ public class TrafficMeter extends TrafficMeterAbstract {
                     mTrafficBurstStartBytes = mTotalRxBytes;
                 }
                 if (td > 0) {
-                    setText(formatTraffic(newBytes * 1000 / td, true));
+                    setTrafficText(formatTraffic(newBytes * 1000 / td, true));
                 }
             }
 
@@ -188,6 +189,7 @@ public class TrafficMeter extends TrafficMeterAbstract {
             mTotalRxBytes = (canReadFromFile() && disconnected) ? 
                     mTotalRxBytes : currentRxBytes;
             mLastUpdateTime = SystemClock.elapsedRealtime();
+            updateSamplingInterval(newBytes != 0);
             getHandler().postDelayed(mRunnable, mInterval);
         }
     };
@@ -21,11 +21,8 @@ import com.ceco.marshmallow.gravitybox.ProgressBarController.ProgressInfo;
 import com.ceco.marshmallow.gravitybox.managers.StatusBarIconManager;
 import com.ceco.marshmallow.gravitybox.managers.StatusBarIconManager.ColorInfo;
 import com.ceco.marshmallow.gravitybox.managers.StatusBarIconManager.IconManagerListener;
-
-import java.io.BufferedReader;
+
 import java.io.File;
-import java.io.FileReader;
-import java.io.IOException;
 
 import android.content.BroadcastReceiver;
 import android.content.Context;
@@ -34,8 +31,11 @@ import android.content.IntentFilter;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
 import android.net.TrafficStats;
+import android.os.SystemClock;
 import android.telephony.PhoneStateListener;
 import android.telephony.TelephonyManager;
+import android.text.TextPaint;
+import android.text.TextUtils;
 import android.util.TypedValue;
 import android.view.Gravity;
 import android.view.View;
@@ -46,7 +46,8 @@ import de.robv.android.xposed.XSharedPreferences;
 import de.robv.android.xposed.XposedBridge;
 
 public abstract class TrafficMeterAbstract extends TextView 
-                        implements BroadcastSubReceiver, IconManagerListener,
+                        implements BroadcastSubReceiver, BroadcastSubReceiver.ActionFilter,
+                                   IconManagerListener,
                                    ProgressBarController.ProgressStateListener {
     protected static final String PACKAGE_NAME = "com.android.systemui";
     protected static final String TAG = "GB:NetworkTraffic";
@@ -55,9 +56,17 @@ public abstract class TrafficMeterAbstract extends TextView
     public static enum TrafficMeterMode { OFF, SIMPLE, OMNI };
     public static enum DisplayMode { ALWAYS, DOWNLOAD_MANAGER, PROGRESS_TRACKING };
 
+    // sampling backs off while there's no traffic
+    private static final int INTERVAL_ACTIVE = 1000;
+    private static final int INTERVAL_IDLE = 5000;
+    private static final int INTERVAL_IDLE_LONG = 15000;
+    private static final long IDLE_THRESHOLD = 10000;
+    private static final long IDLE_THRESHOLD_LONG = 60000;
+
     protected Context mGbContext;
     protected boolean mAttached;
-    protected int mInterval = 1000;
+    protected int mInterval = INTERVAL_ACTIVE;
+    private long mIdleSince;
     protected int mPosition;
     protected int mSize;
     protected int mMargin;
@@ -71,6 +80,13 @@ public abstract class TrafficMeterAbstract extends TextView
     protected boolean mIsTrackingProgress;
     protected boolean mAllowInLockscreen;
     private Boolean mCanReadFromFile;
+    private TrafficStatsReader mStatsReader = new TrafficStatsReader();
+    private long[] mRxTxBytes = new long[] { 0, 0 };
+    private long[] mCategoryRx = new long[TrafficAccounting.CATEGORY_COUNT];
+    private long[] mCategoryTx = new long[TrafficAccounting.CATEGORY_COUNT];
+    // allocated only while some meter option needs rolling averages
+    private TrafficAccounting mAccounting;
+    private int mTextWidth;
 
     protected static void log(String message) {
         XposedBridge.log(TAG + ": " + message);
@@ -203,6 +219,7 @@ public abstract class TrafficMeterAbstract extends TextView
             }
 
             updateState();
+            mStatsReader.close();
         }
     }
 
@@ -214,6 +231,15 @@ public abstract class TrafficMeterAbstract extends TextView
         return mAllowInLockscreen;
     }
 
+    @Override
+    public String[] getBroadcastActions() {
+        return new String[] {
+            GravityBoxSettings.ACTION_PREF_DATA_TRAFFIC_CHANGED,
+            Intent.ACTION_SCREEN_ON,
+            Intent.ACTION_SCREEN_OFF
+        };
+    }
+
     @Override
     public void onBroadcastReceived(Context context, Intent intent) {
         String action = intent.getAction();
@@ -277,7 +303,9 @@ public abstract class TrafficMeterAbstract extends TextView
     }
 
     protected void updateState() {
+        resetTextWidth();
         if (shoudStartTrafficUpdates()) {
+            resetSamplingInterval();
             startTrafficUpdates();
             setVisibility(View.VISIBLE);
             if (DEBUG) log("traffic updates started");
@@ -315,6 +343,73 @@ public abstract class TrafficMeterAbstract extends TextView
     @Override
     public void onPreferencesChanged(Intent intent) { }
 
+    public int getSamplingInterval() {
+        return mInterval;
+    }
+
+    protected void resetSamplingInterval() {
+        mIdleSince = SystemClock.elapsedRealtime();
+        setSamplingInterval(INTERVAL_ACTIVE);
+    }
+
+    // to be called by subclasses on each sample before scheduling the next one
+    protected void updateSamplingInterval(boolean trafficDetected) {
+        if (trafficDetected) {
+            resetSamplingInterval();
+            return;
+        }
+        final long idleTime = SystemClock.elapsedRealtime() - mIdleSince;
+        if (idleTime >= IDLE_THRESHOLD_LONG) {
+            setSamplingInterval(INTERVAL_IDLE_LONG);
+        } else if (idleTime >= IDLE_THRESHOLD) {
+            setSamplingInterval(INTERVAL_IDLE);
+        }
+    }
+
+    private void setSamplingInterval(int interval) {
+        if (mInterval != interval) {
+            mInterval = interval;
+            if (DEBUG) log("Sampling interval set to " + mInterval + "ms");
+        }
+    }
+
+    // sets text only when it differs from the current one
+    // and keeps view width from shrinking so that changing values don't cause relayout
+    protected void setTrafficText(CharSequence text) {
+        if (TextUtils.equals(getText(), text)) return;
+
+        setText(text);
+        final int width = measureTextWidth(text) +
+                getCompoundPaddingLeft() + getCompoundPaddingRight();
+        if (width > mTextWidth) {
+            mTextWidth = width;
+            setWidth(width);
+            if (DEBUG) log("Text width set to " + width + "px");
+        }
+    }
+
+    private int measureTextWidth(CharSequence text) {
+        final TextPaint paint = getPaint();
+        final int length = text.length();
+        float width = 0;
+        int lineStart = 0;
+        for (int i = 0; i <= length; i++) {
+            if (i == length || text.charAt(i) == '\n') {
+                width = Math.max(width, paint.measureText(text, lineStart, i));
+                lineStart = i + 1;
+            }
+        }
+        return (int) Math.ceil(width);
+    }
+
+    private void resetTextWidth() {
+        if (mTextWidth != 0) {
+            mTextWidth = 0;
+            setMinWidth(0);
+            setMaxWidth(Integer.MAX_VALUE);
+        }
+    }
+
     protected abstract void onInitialize(XSharedPreferences prefs) throws Throwable;
     protected abstract void onPreferenceChanged(Intent intent);
     protected abstract void startTrafficUpdates();
@@ -329,56 +424,59 @@ public abstract class TrafficMeterAbstract extends TextView
     }
 
     protected long[] getTotalRxTxBytes() {
-        return (canReadFromFile() ? getTotalRxTxBytesFromFile() :
-            getTotalRxTxBytesFromStats());
+        return getRxTxBytes(TrafficAccounting.CATEGORY_ALL);
     }
 
-    private static boolean isCountedInterface(String iface) {
-        return (iface != null &&
-                !iface.equals("ifname") &&
-                !iface.equals("lo") &&
-                !iface.startsWith("tun"));
+    // returned array is reused by subsequent calls
+    protected long[] getRxTxBytes(int category) {
+        if (!canReadFromFile() || !mStatsReader.read(mCategoryRx, mCategoryTx)) {
+            // fallback to TrafficStats
+            getRxTxBytesFromStats();
+        }
+        if (mAccounting != null) {
+            mAccounting.addSample(SystemClock.elapsedRealtime(), mCategoryRx, mCategoryTx);
+        }
+        mRxTxBytes[0] = mCategoryRx[category];
+        mRxTxBytes[1] = mCategoryTx[category];
+        if (DEBUG) log(TrafficAccounting.getCategoryName(category) +
+                ": RX=" + mRxTxBytes[0] + "; TX=" + mRxTxBytes[1]);
+        return mRxTxBytes;
     }
 
-    private static long tryParseLong(String obj) {
-        try {
-            return Long.parseLong(obj);
-        } catch (Exception e) {
-            return 0;
-        }
+    private void getRxTxBytesFromStats() {
+        mCategoryRx[TrafficAccounting.CATEGORY_ALL] = TrafficStats.getTotalRxBytes();
+        mCategoryTx[TrafficAccounting.CATEGORY_ALL] = TrafficStats.getTotalTxBytes();
+        mCategoryRx[TrafficAccounting.CATEGORY_MOBILE] = TrafficStats.getMobileRxBytes();
+        mCategoryTx[TrafficAccounting.CATEGORY_MOBILE] = TrafficStats.getMobileTxBytes();
+        mCategoryRx[TrafficAccounting.CATEGORY_WIFI] = Math.max(0,
+                mCategoryRx[TrafficAccounting.CATEGORY_ALL] - mCategoryRx[TrafficAccounting.CATEGORY_MOBILE]);
+        mCategoryTx[TrafficAccounting.CATEGORY_WIFI] = Math.max(0,
+                mCategoryTx[TrafficAccounting.CATEGORY_ALL] - mCategoryTx[TrafficAccounting.CATEGORY_MOBILE]);
+        mCategoryRx[TrafficAccounting.CATEGORY_VPN] = 0;
+        mCategoryTx[TrafficAccounting.CATEGORY_VPN] = 0;
     }
 
-    private static long[] getTotalRxTxBytesFromFile() {
-        String line;
-        String[] segs;
-        BufferedReader in = null;
-        long[] bytes = new long[] { 0, 0 };
-        try {
-            FileReader fr = new FileReader("/proc/net/xt_qtaguid/iface_stat_fmt");
-            in = new BufferedReader(fr);
-            while ((line = in.readLine()) != null) {
-                segs = line.split(" ");
-                if (segs.length < 4)
-                    throw new UnsupportedOperationException("Unsupported length of net params");
-
-                if (isCountedInterface(segs[0])) {
-                    if (DEBUG) log("iface:"+segs[0]+"; RX="+segs[1]+"; TX="+segs[3]);
-                    bytes[0] += tryParseLong(segs[1]);
-                    bytes[1] += tryParseLong(segs[3]);
-                }
-            }
-        } catch (Throwable t) {
-            if (DEBUG) XposedBridge.log(t);
-            // fallback to TrafficStats
-            bytes = getTotalRxTxBytesFromStats();
-        } finally {
-            if (in != null) try { in.close(); } catch(IOException e) {};
+    /**
+     * @return rolling average rate in bytes per second for given category
+     * over TrafficAccounting.WINDOW_1M, WINDOW_5M or WINDOW_15M
+     */
+    public long getAverageRate(int category, boolean tx, long window) {
+        return (mAccounting == null ? 0 : mAccounting.getAverageRate(category, tx, window));
+    }
+
+    // drops averaging history e.g. when monitored category changes
+    protected void resetAccounting() {
+        if (mAccounting != null) {
+            mAccounting.reset();
         }
-        return bytes;
-    }
+    }
 
-    private static long[] getTotalRxTxBytesFromStats() {
-        return new long[] { TrafficStats.getTotalRxBytes(),
-                TrafficStats.getTotalTxBytes() };
+    // samples are recorded for averaging only when enabled
+    protected void setAccountingEnabled(boolean enabled) {
+        if (enabled && mAccounting == null) {
+            mAccounting = new TrafficAccounting();
+        } else if (!enabled) {
+            mAccounting = null;
+        }
     }
 }
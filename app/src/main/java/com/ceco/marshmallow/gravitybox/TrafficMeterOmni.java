@@ -17,10 +17,6 @@
 
 package com.ceco.marshmallow.gravitybox;
 
-import java.text.DecimalFormat;
-import java.util.HashMap;
-import java.util.Map;
-
 import com.ceco.marshmallow.gravitybox.R;
 import com.ceco.marshmallow.gravitybox.managers.StatusBarIconManager;
 import com.ceco.marshmallow.gravitybox.managers.StatusBarIconManager.ColorInfo;
@@ -42,20 +38,6 @@ public class TrafficMeterOmni extends TrafficMeterAbstract {
     private static final int KILOBIT = 1000;
     private static final int KILOBYTE = 1024;
 
-    private static DecimalFormat decimalFormat = new DecimalFormat("##0.#");
-    private static final Map<String,String> SYMBOLS;
-    static {
-        decimalFormat.setMaximumIntegerDigits(4);
-        decimalFormat.setMaximumFractionDigits(1);
-
-        SYMBOLS = new HashMap<String,String>();
-        SYMBOLS.put("b/s", "b/s");
-        SYMBOLS.put("B/s", "B/s");
-        SYMBOLS.put("k", "k");
-        SYMBOLS.put("M", "M");
-        SYMBOLS.put("G", "G");
-    }
-
     private enum Mode { IN, OUT, IN_OUT };
 
     private long[] totalRxTxBytes = new long[] { 0, 0 };
@@ -66,10 +48,17 @@ public class TrafficMeterOmni extends TrafficMeterAbstract {
     private int MB = KB * KB;
     private int GB = MB * KB;
     private Mode mMode;
+    private int mSource;
+    // rolling average window in ms or 0 to show current rate
+    private long mAverageWindow;
     private int mIconColor;
     private boolean mShowIcon;
     private boolean mAutoHide;
     private int mAutoHideThreshold;
+    private TrafficFormatter mFormatter = new TrafficFormatter();
+    // unit suffixes indexed by magnitude: none, kilo, mega, giga
+    private String[] mByteSuffixes = buildSuffixes("B/s", "k", "M", "G");
+    private String[] mBitSuffixes = buildSuffixes("b/s", "k", "M", "G");
 
     private Handler mTrafficHandler = new Handler() {
         @Override
@@ -89,34 +78,44 @@ public class TrafficMeterOmni extends TrafficMeterAbstract {
             lastUpdateTime = SystemClock.elapsedRealtime();
 
             // Calculate the data rate from the change in total bytes and time
-            long[] newTotalRxTxBytes = getTotalRxTxBytes();
+            long[] newTotalRxTxBytes = getRxTxBytes(mSource);
             long rxData = newTotalRxTxBytes[0] - totalRxTxBytes[0];
             long txData = newTotalRxTxBytes[1] - totalRxTxBytes[1];
 
-            if (shouldHide(rxData, txData, timeDelta)) {
+            // Current rate or rolling average in bytes per second
+            long rxSpeed, txSpeed;
+            if (mAverageWindow > 0) {
+                rxSpeed = getAverageRate(mSource, false, mAverageWindow);
+                txSpeed = getAverageRate(mSource, true, mAverageWindow);
+            } else {
+                rxSpeed = (long)(rxData / (timeDelta / 1000F));
+                txSpeed = (long)(txData / (timeDelta / 1000F));
+            }
+
+            if (shouldHide(rxSpeed, txSpeed)) {
                 setText("");
                 setVisibility(View.GONE);
             } else {
                 // If bit/s convert from Bytes to bits
-                String symbol;
+                String[] suffixes;
                 if (KB == KILOBYTE) {
-                    symbol = SYMBOLS.get("B/s");
+                    suffixes = mByteSuffixes;
                 } else {
-                    symbol = SYMBOLS.get("b/s");
-                    rxData = rxData * 8;
-                    txData = txData * 8;
+                    suffixes = mBitSuffixes;
+                    rxSpeed = rxSpeed * 8;
+                    txSpeed = txSpeed * 8;
                 }
 
                 // Get information for uplink ready so the line return can be added
-                String output = "";
+                mFormatter.clear();
                 if (mMode == Mode.OUT || mMode == Mode.IN_OUT) {
-                    output = formatOutput(timeDelta, txData, symbol);
+                    formatOutput(txSpeed, suffixes);
                 }
     
                 // Ensure text size is where it needs to be
                 int textSize;
                 if (mMode == Mode.IN_OUT) {
-                    output += "\n";
+                    mFormatter.append('\n');
                     textSize = txtSizeMulti;
                 } else {
                     textSize = txtSizeSingle;
@@ -124,39 +123,42 @@ public class TrafficMeterOmni extends TrafficMeterAbstract {
     
                 // Add information for downlink if it's called for
                 if (mMode == Mode.IN || mMode == Mode.IN_OUT) {
-                    output += formatOutput(timeDelta, rxData, symbol);
+                    formatOutput(rxSpeed, suffixes);
                 }
     
                 // Update view if there's anything new to show
-                if (!output.contentEquals(getText()) || msg.what == 1) {
+                if (msg.what == 1) {
                     setTextSize(TypedValue.COMPLEX_UNIT_PX, (float)textSize);
-                    setText(output);
                 }
-                setVisibility(View.VISIBLE);
+                setTrafficText(mFormatter.getText());
+                if (getVisibility() != View.VISIBLE) {
+                    setVisibility(View.VISIBLE);
+                }
             }
 
-            // Post delayed message to refresh in ~1000ms
+            // Post delayed message to refresh in ~1000ms or later when idle
             totalRxTxBytes[0] = newTotalRxTxBytes[0];
             totalRxTxBytes[1] = newTotalRxTxBytes[1];
+            updateSamplingInterval(rxData != 0 || txData != 0);
             clearHandlerCallbacks();
             mTrafficHandler.postDelayed(mRunnable, mInterval);
         }
 
-        private String formatOutput(long timeDelta, long data, String symbol) {
-            long speed = (long)(data / (timeDelta / 1000F));
+        private void formatOutput(long speed, String[] suffixes) {
             if (speed < KB) {
-                return decimalFormat.format(speed) + symbol;
+                mFormatter.appendInteger(speed, false).append(suffixes[0]);
             } else if (speed < MB) {
-                return decimalFormat.format(speed / (float)KB) + SYMBOLS.get("k") + symbol;
+                mFormatter.appendDecimal(speed / (float)KB, false).append(suffixes[1]);
             } else if (speed < GB) {
-                return decimalFormat.format(speed / (float)MB) + SYMBOLS.get("M") + symbol;
+                mFormatter.appendDecimal(speed / (float)MB, false).append(suffixes[2]);
+            } else {
+                mFormatter.appendDecimal(speed / (float)GB, false).append(suffixes[3]);
             }
-            return decimalFormat.format(speed / (float)GB) + SYMBOLS.get("G") + symbol;
         }
 
-        private boolean shouldHide(long rxData, long txData, long timeDelta) {
-            long speedTxKB = (long)(txData / (timeDelta / 1000f)) / KILOBYTE;
-            long speedRxKB = (long)(rxData / (timeDelta / 1000f)) / KILOBYTE;
+        private boolean shouldHide(long rxSpeed, long txSpeed) {
+            long speedTxKB = txSpeed / KILOBYTE;
+            long speedRxKB = rxSpeed / KILOBYTE;
             return mAutoHide &&
                    (mMode == Mode.IN && speedRxKB <= mAutoHideThreshold ||
                    mMode == Mode.OUT && speedTxKB <= mAutoHideThreshold ||
@@ -181,13 +183,19 @@ public class TrafficMeterOmni extends TrafficMeterAbstract {
     @Override
     protected void onInitialize(XSharedPreferences prefs) throws Throwable {
         mGbContext = Utils.getGbContext(getContext());
-        SYMBOLS.put("b/s", mGbContext.getString(R.string.bit_per_sec_abbr));
-        SYMBOLS.put("B/s", mGbContext.getString(R.string.byte_per_sec_abbr));
-        SYMBOLS.put("k", mGbContext.getString(R.string.kilo_abbr));
-        SYMBOLS.put("M", mGbContext.getString(R.string.mega_abbr));
-        SYMBOLS.put("G", mGbContext.getString(R.string.giga_abbr));
+        final String kilo = mGbContext.getString(R.string.kilo_abbr);
+        final String mega = mGbContext.getString(R.string.mega_abbr);
+        final String giga = mGbContext.getString(R.string.giga_abbr);
+        mByteSuffixes = buildSuffixes(mGbContext.getString(R.string.byte_per_sec_abbr),
+                kilo, mega, giga);
+        mBitSuffixes = buildSuffixes(mGbContext.getString(R.string.bit_per_sec_abbr),
+                kilo, mega, giga);
 
         mMode = Mode.valueOf(prefs.getString(GravityBoxSettings.PREF_KEY_DATA_TRAFFIC_OMNI_MODE, "IN_OUT"));
+        mSource = TrafficAccounting.getCategory(prefs.getString(
+                GravityBoxSettings.PREF_KEY_DATA_TRAFFIC_OMNI_SOURCE, "ALL"));
+        setAverageWindow(Long.valueOf(prefs.getString(
+                GravityBoxSettings.PREF_KEY_DATA_TRAFFIC_OMNI_AVERAGE, "0")));
         mShowIcon = prefs.getBoolean(GravityBoxSettings.PREF_KEY_DATA_TRAFFIC_OMNI_SHOW_ICON, true);
         mAutoHide = prefs.getBoolean(GravityBoxSettings.PREF_KEY_DATA_TRAFFIC_OMNI_AUTOHIDE, false);
         mAutoHideThreshold = prefs.getInt(GravityBoxSettings.PREF_KEY_DATA_TRAFFIC_OMNI_AUTOHIDE_TH, 10);
@@ -199,6 +207,18 @@ public class TrafficMeterOmni extends TrafficMeterAbstract {
         if (intent.hasExtra(GravityBoxSettings.EXTRA_DT_OMNI_MODE)) {
             mMode = Mode.valueOf(intent.getStringExtra(GravityBoxSettings.EXTRA_DT_OMNI_MODE));
         }
+        if (intent.hasExtra(GravityBoxSettings.EXTRA_DT_OMNI_SOURCE)) {
+            final int source = TrafficAccounting.getCategory(
+                    intent.getStringExtra(GravityBoxSettings.EXTRA_DT_OMNI_SOURCE));
+            if (source != mSource) {
+                mSource = source;
+                resetAccounting();
+            }
+        }
+        if (intent.hasExtra(GravityBoxSettings.EXTRA_DT_OMNI_AVERAGE)) {
+            setAverageWindow(Long.valueOf(
+                    intent.getStringExtra(GravityBoxSettings.EXTRA_DT_OMNI_AVERAGE)));
+        }
         if (intent.hasExtra(GravityBoxSettings.EXTRA_DT_OMNI_SHOW_ICON)) {
             mShowIcon = intent.getBooleanExtra(GravityBoxSettings.EXTRA_DT_OMNI_SHOW_ICON, true);
         }
@@ -213,6 +233,15 @@ public class TrafficMeterOmni extends TrafficMeterAbstract {
         }
     }
 
+    private void setAverageWindow(long window) {
+        mAverageWindow = window;
+        setAccountingEnabled(window > 0);
+    }
+
+    private static String[] buildSuffixes(String symbol, String kilo, String mega, String giga) {
+        return new String[] { symbol, kilo + symbol, mega + symbol, giga + symbol };
+    }
+
     private void setSize() {
         final Resources resources = getResources();
         txtSizeSingle = (int) (TypedValue.applyDimension(TypedValue.COMPLEX_UNIT_DIP, mSize,
@@ -223,7 +252,9 @@ public class TrafficMeterOmni extends TrafficMeterAbstract {
 
     @Override
     protected void startTrafficUpdates() {
-        totalRxTxBytes = getTotalRxTxBytes();
+        long[] newTotalRxTxBytes = getRxTxBytes(mSource);
+        totalRxTxBytes[0] = newTotalRxTxBytes[0];
+        totalRxTxBytes[1] = newTotalRxTxBytes[1];
         lastUpdateTime = SystemClock.elapsedRealtime();
         mTrafficHandler.sendEmptyMessage(1);
         updateTrafficDrawable();
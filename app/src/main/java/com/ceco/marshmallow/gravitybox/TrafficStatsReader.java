@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2017 Peter Gregus for GravityBox Project (C3C076@xda)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ceco.marshmallow.gravitybox;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+/*
+ * Reads interface totals from xt_qtaguid stats keeping the file open
+ * and parsing counters in place so that periodic reads produce no garbage.
+ * Totals are split per network category within the same pass.
+ */
+public class TrafficStatsReader {
+    public static final String IFACE_STAT_FILE = "/proc/net/xt_qtaguid/iface_stat_fmt";
+
+    private RandomAccessFile mFile;
+    private byte[] mBuffer = new byte[4096];
+    private byte[][] mIfaceNames = new byte[0][];
+    private boolean[] mIfaceCounted = new boolean[0];
+    private int[] mIfaceCategory = new int[0];
+    private long[] mFields = new long[3];
+
+    private static boolean isCountedInterface(String iface) {
+        return (iface != null &&
+                !iface.equals("ifname") &&
+                !iface.equals("lo") &&
+                !iface.startsWith("tun"));
+    }
+
+    private static int getInterfaceCategory(String iface) {
+        if (iface.startsWith("wlan") || iface.startsWith("p2p")) {
+            return TrafficAccounting.CATEGORY_WIFI;
+        } else if (iface.startsWith("rmnet") || iface.startsWith("ccmni") ||
+                iface.startsWith("pdp") || iface.startsWith("rev_rmnet")) {
+            return TrafficAccounting.CATEGORY_MOBILE;
+        } else if (iface.startsWith("tun") || iface.startsWith("ppp") ||
+                iface.startsWith("ipsec")) {
+            return TrafficAccounting.CATEGORY_VPN;
+        }
+        return -1;
+    }
+
+    /**
+     * Sums RX/TX bytes per TrafficAccounting category into rx and tx arrays.
+     * CATEGORY_ALL contains sum of all counted interfaces.
+     * @return false if stats file is not available or has unsupported format
+     */
+    public boolean read(long[] rx, long[] tx) {
+        for (int c = 0; c < TrafficAccounting.CATEGORY_COUNT; c++) {
+            rx[c] = tx[c] = 0;
+        }
+        final int len = readFile();
+        if (len < 0) return false;
+
+        final long[] fields = mFields;
+        int pos = 0;
+        while (pos < len) {
+            // interface name
+            final int nameStart = pos;
+            while (pos < len && mBuffer[pos] != ' ' && mBuffer[pos] != '\n') pos++;
+            final int nameEnd = pos;
+            // rx bytes, rx packets, tx bytes
+            int fieldCount = 0;
+            while (pos < len && mBuffer[pos] != '\n') {
+                while (pos < len && mBuffer[pos] == ' ') pos++;
+                if (pos >= len || mBuffer[pos] == '\n') break;
+                long val = 0;
+                boolean valid = true;
+                while (pos < len && mBuffer[pos] != ' ' && mBuffer[pos] != '\n') {
+                    final byte b = mBuffer[pos++];
+                    if (b >= '0' && b <= '9') {
+                        val = val * 10 + (b - '0');
+                    } else {
+                        valid = false;
+                    }
+                }
+                if (fieldCount < fields.length) {
+                    fields[fieldCount] = valid ? val : 0;
+                }
+                fieldCount++;
+            }
+            pos++;
+
+            if (nameEnd == nameStart) continue;
+            if (fieldCount < 3) return false;
+            final int idx = getInterfaceIndex(nameStart, nameEnd);
+            if (mIfaceCounted[idx]) {
+                rx[TrafficAccounting.CATEGORY_ALL] += fields[0];
+                tx[TrafficAccounting.CATEGORY_ALL] += fields[2];
+            }
+            if (mIfaceCategory[idx] >= 0) {
+                rx[mIfaceCategory[idx]] += fields[0];
+                tx[mIfaceCategory[idx]] += fields[2];
+            }
+        }
+        return true;
+    }
+
+    public void close() {
+        if (mFile != null) {
+            try { mFile.close(); } catch (IOException e) { }
+            mFile = null;
+        }
+    }
+
+    private int readFile() {
+        try {
+            if (mFile == null) {
+                mFile = new RandomAccessFile(IFACE_STAT_FILE, "r");
+            }
+            mFile.seek(0);
+            int len = 0;
+            int n;
+            while ((n = mFile.read(mBuffer, len, mBuffer.length - len)) > 0) {
+                len += n;
+                if (len == mBuffer.length) {
+                    mBuffer = Arrays.copyOf(mBuffer, mBuffer.length * 2);
+                }
+            }
+            return len;
+        } catch (IOException e) {
+            close();
+            return -1;
+        }
+    }
+
+    // interface filter decisions are cached per interface name
+    private int getInterfaceIndex(int start, int end) {
+        final int len = end - start;
+        for (int i = 0; i < mIfaceNames.length; i++) {
+            final byte[] name = mIfaceNames[i];
+            if (name.length != len) continue;
+            int j = 0;
+            while (j < len && name[j] == mBuffer[start + j]) j++;
+            if (j == len) return i;
+        }
+
+        final byte[] name = Arrays.copyOfRange(mBuffer, start, end);
+        final String iface = new String(name);
+        final int idx = mIfaceNames.length;
+        mIfaceNames = Arrays.copyOf(mIfaceNames, idx + 1);
+        mIfaceCounted = Arrays.copyOf(mIfaceCounted, idx + 1);
+        mIfaceCategory = Arrays.copyOf(mIfaceCategory, idx + 1);
+        mIfaceNames[idx] = name;
+        mIfaceCounted[idx] = isCountedInterface(iface);
+        mIfaceCategory[idx] = getInterfaceCategory(iface);
+        return idx;
+    }
+}
@@ -17,22 +17,47 @@
 
 package com.ceco.marshmallow.gravitybox;
 
+import android.os.SystemClock;
 import android.text.SpannableString;
 import android.text.Spanned;
 import android.text.TextUtils;
+import android.util.SparseArray;
 
 import java.nio.charset.Charset;
 import java.nio.charset.CharsetEncoder;
 import java.text.Normalizer;
 import java.util.regex.Pattern;
 
+import de.robv.android.xposed.XposedBridge;
+
 /**
  * Attempts to substitute characters that cannot be encoded in the limited
  * GSM 03.38 character set. In many cases this will prevent sending a message
  * containing characters that would switch the message from 7-bit GSM
  * encoding (160 char limit) to 16-bit Unicode encoding (70 char limit).
+ *
+ * Replacement of each character is computed once and kept in a lookup table
+ * so filtering is a single pass over the source.
  */
 public class UnicodeFilter {
+    private static final String TAG = "GB:UnicodeFilter";
+    // Latin, Greek and Cyrillic blocks are looked up in array, rest in sparse table
+    private static final int TABLE_SIZE = 0x0530;
+
+    // Special case characters that don't get stripped by normalization
+    private static final String[][] SPECIAL_CASES = {
+        { "Œ", "OE" }, { "œ", "oe" }, { "Ł", "L" }, { "ł", "l" }, { "Đ", "DJ" }, { "đ", "dj" },
+        { "Α", "A" }, { "Β", "B" }, { "Ε", "E" }, { "Ζ", "Z" }, { "Η", "H" }, { "Ι", "I" },
+        { "Κ", "K" }, { "Μ", "M" }, { "Ν", "N" }, { "Ο", "O" }, { "Ρ", "P" }, { "Τ", "T" },
+        { "Υ", "Y" }, { "Χ", "X" }, { "α", "A" }, { "β", "B" }, { "γ", "Γ" }, { "δ", "Δ" },
+        { "ε", "E" }, { "ζ", "Z" }, { "η", "H" }, { "θ", "Θ" }, { "ι", "I" }, { "κ", "K" },
+        { "λ", "Λ" }, { "μ", "M" }, { "ν", "N" }, { "ξ", "Ξ" }, { "ο", "O" }, { "π", "Π" },
+        { "ρ", "P" }, { "σ", "Σ" }, { "τ", "T" }, { "υ", "Y" }, { "φ", "Φ" }, { "χ", "X" },
+        { "ψ", "Ψ" }, { "ω", "Ω" }, { "ς", "Σ" }
+    };
+
+    private static SparseArray<String> sSpecialCases;
+
     private CharsetEncoder gsm =
             Charset.forName("gsm-03.38-2000").newEncoder();
 
@@ -40,89 +65,147 @@ public class UnicodeFilter {
             Pattern.compile("\\p{InCombiningDiacriticalMarks}");
 
     private boolean mStripNonDecodableOnly;
+    private final String[] mTable = new String[TABLE_SIZE];
+    private final SparseArray<String> mExtTable = new SparseArray<String>();
+    private final StringBuilder mOutput = new StringBuilder();
 
     public UnicodeFilter(boolean stripNonDecodableOnly) {
         mStripNonDecodableOnly = stripNonDecodableOnly;
+        synchronized (UnicodeFilter.class) {
+            if (sSpecialCases == null) {
+                sSpecialCases = new SparseArray<String>(SPECIAL_CASES.length);
+                for (String[] sc : SPECIAL_CASES) {
+                    sSpecialCases.put(sc[0].charAt(0), sc[1]);
+                }
+            }
+        }
+        for (char c = 0; c < TABLE_SIZE; c++) {
+            mTable[c] = computeReplacement(c);
+        }
     }
 
-    public CharSequence filter(CharSequence source) {
-        StringBuilder output = new StringBuilder(source);
-        final int sourceLength = source.length();
+    public boolean isStripNonDecodableOnly() {
+        return mStripNonDecodableOnly;
+    }
 
-        for (int i = 0; i < sourceLength; i++) {
-            char c = source.charAt(i);
+    // table is extended lazily for characters outside of array range
+    private String getReplacement(char c) {
+        if (c < TABLE_SIZE) {
+            return mTable[c];
+        }
+        String s = mExtTable.get(c);
+        if (s == null) {
+            s = computeReplacement(c);
+            mExtTable.put(c, s);
+        }
+        return s;
+    }
 
-            // Character requires Unicode, try to replace it
-            if (!mStripNonDecodableOnly || !gsm.canEncode(c)) {
-                String s = String.valueOf(c);
+    private String computeReplacement(char c) {
+        // Character can be encoded, keep it
+        if (mStripNonDecodableOnly && gsm.canEncode(c)) {
+            return String.valueOf(c);
+        }
 
-                // Try normalizing the character into Unicode NFKD form and
-                // stripping out diacritic mark characters.
-                s = Normalizer.normalize(s, Normalizer.Form.NFKD);
-                s = diacritics.matcher(s).replaceAll("");
+        // Try normalizing the character into Unicode NFKD form and
+        // stripping out diacritic mark characters.
+        String s = Normalizer.normalize(String.valueOf(c), Normalizer.Form.NFKD);
+        s = diacritics.matcher(s).replaceAll("");
+
+        StringBuilder sb = new StringBuilder(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            final char ch = s.charAt(i);
+            final String special = sSpecialCases.get(ch);
+            if (special != null) {
+                sb.append(special);
+            } else {
+                sb.append(ch);
+            }
+        }
+        return sb.toString();
+    }
 
-                // Special case characters that don't get stripped by the
-                // above technique.
-                s = s.replace("Œ", "OE");
-                s = s.replace("œ", "oe");
-                s = s.replace("Ł", "L");
-                s = s.replace("ł", "l");
-                s = s.replace("Đ", "DJ");
-                s = s.replace("đ", "dj");
-                s = s.replace("Α", "A");
-                s = s.replace("Β", "B");
-                s = s.replace("Ε", "E");
-                s = s.replace("Ζ", "Z");
-                s = s.replace("Η", "H");
-                s = s.replace("Ι", "I");
-                s = s.replace("Κ", "K");
-                s = s.replace("Μ", "M");
-                s = s.replace("Ν", "N");
-                s = s.replace("Ο", "O");
-                s = s.replace("Ρ", "P");
-                s = s.replace("Τ", "T");
-                s = s.replace("Υ", "Y");
-                s = s.replace("Χ", "X");
-                s = s.replace("α", "A");
-                s = s.replace("β", "B");
-                s = s.replace("γ", "Γ");
-                s = s.replace("δ", "Δ");
-                s = s.replace("ε", "E");
-                s = s.replace("ζ", "Z");
-                s = s.replace("η", "H");
-                s = s.replace("θ", "Θ");
-                s = s.replace("ι", "I");
-                s = s.replace("κ", "K");
-                s = s.replace("λ", "Λ");
-                s = s.replace("μ", "M");
-                s = s.replace("ν", "N");
-                s = s.replace("ξ", "Ξ");
-                s = s.replace("ο", "O");
-                s = s.replace("π", "Π");
-                s = s.replace("ρ", "P");
-                s = s.replace("σ", "Σ");
-                s = s.replace("τ", "T");
-                s = s.replace("υ", "Y");
-                s = s.replace("φ", "Φ");
-                s = s.replace("χ", "X");
-                s = s.replace("ψ", "Ψ");
-                s = s.replace("ω", "Ω");
-                s = s.replace("ς", "Σ");
-
-                output.replace(i, i + 1, s);
+    public synchronized CharSequence filter(CharSequence source) {
+        final int sourceLength = source.length();
+        boolean changed = false;
+        mOutput.setLength(0);
+
+        for (int i = 0; i < sourceLength; i++) {
+            final char c = source.charAt(i);
+            final String s = getReplacement(c);
+            if (s.length() == 1 && s.charAt(0) == c) {
+                mOutput.append(c);
+            } else {
+                mOutput.append(s);
+                changed = true;
             }
         }
 
+        // Nothing to replace, source can be used as is
+        if (!changed) {
+            return source;
+        }
+
         // Source is a spanned string, so copy the spans from it
         if (source instanceof Spanned) {
-            SpannableString spannedoutput = new SpannableString(output);
-            TextUtils.copySpansFrom(
-                    (Spanned) source, 0, sourceLength, null, spannedoutput, 0);
+            SpannableString spannedoutput = new SpannableString(mOutput);
+            TextUtils.copySpansFrom((Spanned) source, 0,
+                    Math.min(sourceLength, mOutput.length()), null, spannedoutput, 0);
 
             return spannedoutput;
         }
 
         // Source is a vanilla charsequence, so return output as-is
+        return mOutput.toString();
+    }
+
+    // Previous per-character implementation, kept for benchmarking only
+    private String filterReference(CharSequence source) {
+        StringBuilder output = new StringBuilder(source.length());
+        for (int i = 0; i < source.length(); i++) {
+            char c = source.charAt(i);
+            if (!mStripNonDecodableOnly || !gsm.canEncode(c)) {
+                String s = Normalizer.normalize(String.valueOf(c), Normalizer.Form.NFKD);
+                s = diacritics.matcher(s).replaceAll("");
+                for (String[] sc : SPECIAL_CASES) {
+                    s = s.replace(sc[0], sc[1]);
+                }
+                output.append(s);
+            } else {
+                output.append(c);
+            }
+        }
         return output.toString();
     }
+
+    /**
+     * Logs time taken by table driven and previous implementation
+     * to filter multi-part message built from given sample text
+     */
+    public synchronized void logBenchmark(String sample, int parts, int iterations) {
+        StringBuilder sb = new StringBuilder(160 * parts);
+        while (sb.length() < 160 * parts) {
+            sb.append(sample);
+        }
+        final String message = sb.substring(0, 160 * parts);
+
+        long startTime = SystemClock.elapsedRealtimeNanos();
+        CharSequence out = null;
+        for (int i = 0; i < iterations; i++) {
+            out = filter(message);
+        }
+        final long tableTime = SystemClock.elapsedRealtimeNanos() - startTime;
+
+        startTime = SystemClock.elapsedRealtimeNanos();
+        String refOut = null;
+        for (int i = 0; i < iterations; i++) {
+            refOut = filterReference(message);
+        }
+        final long refTime = SystemClock.elapsedRealtimeNanos() - startTime;
+
+        XposedBridge.log(TAG + ": benchmark: " + message.length() + " chars x " + iterations +
+                "; table=" + (tableTime / 1000 / iterations) + "us" +
+                "; reference=" + (refTime / 1000 / iterations) + "us" +
+                "; outputs match=" + refOut.equals(out.toString()));
+    }
 }
@@ -17,7 +17,6 @@ package com.ceco.marshmallow.gravitybox;
 
 import de.robv.android.xposed.XposedBridge;
 import de.robv.android.xposed.XposedHelpers;
-import android.annotation.SuppressLint;
 import android.app.ActivityManager;
 import android.content.Context;
 import android.content.pm.PackageInfo;
@@ -45,11 +44,6 @@ import android.os.IBinder;
 import android.os.Looper;
 import android.os.UserHandle;
 import android.os.Vibrator;
-import android.renderscript.Allocation;
-import android.renderscript.Allocation.MipmapControl;
-import android.renderscript.Element;
-import android.renderscript.RenderScript;
-import android.renderscript.ScriptIntrinsicBlur;
 import android.telephony.TelephonyManager;
 import android.util.DisplayMetrics;
 import android.view.WindowManager;
@@ -63,7 +57,6 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.lang.reflect.Constructor;
 import java.util.*;
-import java.util.Map.Entry;
 
 import static de.robv.android.xposed.XposedHelpers.callStaticMethod;
 import static de.robv.android.xposed.XposedHelpers.findClass;
@@ -518,52 +511,12 @@ public class Utils {
     }
 
     public static Bitmap blurBitmap(Context context, Bitmap bmp, float radius) {
-        Bitmap out = Bitmap.createBitmap(bmp);
-        RenderScript rs = RenderScript.create(context);
-        radius = Math.min(Math.max(radius, 0), 25);
-
-        Allocation input = Allocation.createFromBitmap(
-                rs, bmp, MipmapControl.MIPMAP_NONE, Allocation.USAGE_SCRIPT);
-        Allocation output = Allocation.createTyped(rs, input.getType());
-
-        ScriptIntrinsicBlur script = ScriptIntrinsicBlur.create(rs, Element.U8_4(rs));
-        script.setInput(input);
-        script.setRadius(radius);
-        script.forEach(output);
-
-        output.copyTo(out);
-
-        rs.destroy();
-        return out;
+        return BlurEngine.getInstance(context).blur(bmp, radius);
     }
 
-    @SuppressLint("UseSparseArrays")
     public static int getBitmapPredominantColor(Bitmap bmp) {
-        int width = bmp.getWidth();
-        int height = bmp.getHeight();
-        int[] pixels = new int[width * height];
-
-        bmp.getPixels(pixels, 0, width, 0, 0, width, height);
-
-        Map<Integer, Integer> tmpMap = new HashMap<Integer, Integer>();
-        for (int i=0; i < pixels.length ; i++) {
-            Integer counter = (Integer) tmpMap.get(pixels[i]);
-            if (counter == null) counter = 0;
-            counter++;
-            tmpMap.put(pixels[i], counter);
-        }
-
-        Entry<Integer, Integer> maxEntry = null;
-        for (Entry<Integer, Integer> entry : tmpMap.entrySet()) {
-            // discard transparent pixels
-            if (entry.getKey() == Color.TRANSPARENT) continue;
-
-            if (maxEntry == null || entry.getValue() > maxEntry.getValue()) {
-                maxEntry = entry;
-            }
-        }
-
-        return maxEntry.getKey();
+        int[] palette = ColorAnalyzer.getPalette(bmp, 1);
+        return (palette.length > 0 ? palette[0] : Color.TRANSPARENT);
     }
 
     public static Bitmap getCircleBitmap(Bitmap bitmap) {
@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2017 Peter Gregus for GravityBox Project (C3C076@xda)
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ceco.marshmallow.gravitybox.ledcontrol;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Queue;
+
+/*
+ * Case-insensitive multi-keyword matcher (Aho-Corasick automaton).
+ * Keywords are folded to lower case once when compiling, text is folded
+ * per character while scanning so matching doesn't allocate.
+ */
+public class KeywordMatcher {
+
+    private static final class Node {
+        char[] keys = new char[0];
+        Node[] next = new Node[0];
+        Node fail;
+        boolean match;
+
+        Node get(char c) {
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i] == c) return next[i];
+            }
+            return null;
+        }
+
+        Node add(char c) {
+            Node n = get(c);
+            if (n == null) {
+                n = new Node();
+                keys = Arrays.copyOf(keys, keys.length + 1);
+                next = Arrays.copyOf(next, next.length + 1);
+                keys[keys.length - 1] = c;
+                next[next.length - 1] = n;
+            }
+            return n;
+        }
+    }
+
+    private final Node mRoot = new Node();
+    private final boolean mEmpty;
+
+    public KeywordMatcher(String[] keywords) {
+        boolean empty = true;
+        for (String kw : keywords) {
+            if (kw.isEmpty()) continue;
+            Node n = mRoot;
+            for (int i = 0; i < kw.length(); i++) {
+                n = n.add(Character.toLowerCase(kw.charAt(i)));
+            }
+            n.match = true;
+            empty = false;
+        }
+        mEmpty = empty;
+        buildFailureLinks();
+    }
+
+    private void buildFailureLinks() {
+        Queue<Node> queue = new ArrayDeque<Node>();
+        mRoot.fail = mRoot;
+        for (Node child : mRoot.next) {
+            child.fail = mRoot;
+            queue.add(child);
+        }
+        while (!queue.isEmpty()) {
+            Node n = queue.remove();
+            for (int i = 0; i < n.keys.length; i++) {
+                Node child = n.next[i];
+                Node f = n.fail;
+                while (f != mRoot && f.get(n.keys[i]) == null) {
+                    f = f.fail;
+                }
+                Node target = f.get(n.keys[i]);
+                child.fail = (target == null || target == child) ? mRoot : target;
+                child.match |= child.fail.match;
+                queue.add(child);
+            }
+        }
+    }
+
+    public boolean matches(CharSequence text) {
+        if (mEmpty || text == null) return false;
+
+        Node n = mRoot;
+        for (int i = 0; i < text.length(); i++) {
+            final char c = Character.toLowerCase(text.charAt(i));
+            Node next = n.get(c);
+            while (next == null && n != mRoot) {
+                n = n.fail;
+                next = n.get(c);
+            }
+            n = (next == null ? mRoot : next);
+            if (n.match) return true;
+        }
+        return false;
+    }
+}
@@ -15,6 +15,10 @@
 
 package com.ceco.marshmallow.gravitybox.ledcontrol;
 
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.HashSet;
 import java.util.Set;
 
@@ -74,6 +78,7 @@ public class LedSettings {
     private LedMode mLedMode;
     private boolean mQhIgnore;
     private String mQhIgnoreList;
+    private KeywordMatcher mQhIgnoreMatcher;
     private HeadsUpMode mHeadsUpMode;
     private boolean mHeadsUpDnd;
     private int mHeadsUpTimeout;
@@ -182,6 +187,125 @@ public class LedSettings {
         return ls;
     }
 
+    // Fixed-field binary record used by LedSettingsStore
+    // Enums are stored by ordinal so any change to them requires LedSettingsStore.VERSION bump
+    private static final int FLAG_ENABLED = 1 << 0;
+    private static final int FLAG_ONGOING = 1 << 1;
+    private static final int FLAG_SOUND_OVERRIDE = 1 << 2;
+    private static final int FLAG_SOUND_REPLACE = 1 << 3;
+    private static final int FLAG_SOUND_ONLY_ONCE = 1 << 4;
+    private static final int FLAG_INSISTENT = 1 << 5;
+    private static final int FLAG_VIBRATE_OVERRIDE = 1 << 6;
+    private static final int FLAG_VIBRATE_REPLACE = 1 << 7;
+    private static final int FLAG_AS_IGNORE_UPDATE = 1 << 8;
+    private static final int FLAG_QH_IGNORE = 1 << 9;
+    private static final int FLAG_HEADS_UP_DND = 1 << 10;
+    private static final int FLAG_PROGRESS_TRACKING = 1 << 11;
+    private static final int FLAG_SOUND_TO_VIBRATE_DISABLED = 1 << 12;
+    private static final int FLAG_HIDE_PERSISTENT = 1 << 13;
+    private static final int FLAG_LED_IGNORE_UPDATE = 1 << 14;
+
+    protected static LedSettings readRecord(ByteBuffer buf) {
+        LedSettings ls = new LedSettings(null, null);
+        final int flags = buf.getInt();
+        ls.mEnabled = (flags & FLAG_ENABLED) != 0;
+        ls.mOngoing = (flags & FLAG_ONGOING) != 0;
+        ls.mSoundOverride = (flags & FLAG_SOUND_OVERRIDE) != 0;
+        ls.mSoundReplace = (flags & FLAG_SOUND_REPLACE) != 0;
+        ls.mSoundOnlyOnce = (flags & FLAG_SOUND_ONLY_ONCE) != 0;
+        ls.mInsistent = (flags & FLAG_INSISTENT) != 0;
+        ls.mVibrateOverride = (flags & FLAG_VIBRATE_OVERRIDE) != 0;
+        ls.mVibrateReplace = (flags & FLAG_VIBRATE_REPLACE) != 0;
+        ls.mActiveScreenIgnoreUpdate = (flags & FLAG_AS_IGNORE_UPDATE) != 0;
+        ls.mQhIgnore = (flags & FLAG_QH_IGNORE) != 0;
+        ls.mHeadsUpDnd = (flags & FLAG_HEADS_UP_DND) != 0;
+        ls.mProgressTracking = (flags & FLAG_PROGRESS_TRACKING) != 0;
+        ls.mSoundToVibrateDisabled = (flags & FLAG_SOUND_TO_VIBRATE_DISABLED) != 0;
+        ls.mHidePersistent = (flags & FLAG_HIDE_PERSISTENT) != 0;
+        ls.mLedIgnoreUpdate = (flags & FLAG_LED_IGNORE_UPDATE) != 0;
+        ls.mLedOnMs = buf.getInt();
+        ls.mLedOffMs = buf.getInt();
+        ls.mColor = buf.getInt();
+        ls.mHeadsUpTimeout = buf.getInt();
+        ls.mSoundOnlyOnceTimeout = buf.getLong();
+        ls.mActiveScreenMode = ActiveScreenMode.values()[buf.get()];
+        ls.mLedMode = LedMode.values()[buf.get()];
+        ls.mHeadsUpMode = HeadsUpMode.values()[buf.get()];
+        ls.mVisibility = Visibility.values()[buf.get()];
+        ls.mVisibilityLs = VisibilityLs.values()[buf.get()];
+        String soundUri = readString(buf);
+        ls.mSoundUri = soundUri == null ? null : Uri.parse(soundUri);
+        final int patternLen = buf.getInt();
+        if (patternLen >= 0) {
+            ls.mVibratePattern = new long[patternLen];
+            for (int i = 0; i < patternLen; i++) {
+                ls.mVibratePattern[i] = buf.getLong();
+            }
+        }
+        ls.mQhIgnoreList = readString(buf);
+        ls.mLedDnd = readString(buf);
+        return ls;
+    }
+
+    protected void writeRecord(DataOutputStream out) throws IOException {
+        int flags = 0;
+        if (mEnabled) flags |= FLAG_ENABLED;
+        if (mOngoing) flags |= FLAG_ONGOING;
+        if (mSoundOverride) flags |= FLAG_SOUND_OVERRIDE;
+        if (mSoundReplace) flags |= FLAG_SOUND_REPLACE;
+        if (mSoundOnlyOnce) flags |= FLAG_SOUND_ONLY_ONCE;
+        if (mInsistent) flags |= FLAG_INSISTENT;
+        if (mVibrateOverride) flags |= FLAG_VIBRATE_OVERRIDE;
+        if (mVibrateReplace) flags |= FLAG_VIBRATE_REPLACE;
+        if (mActiveScreenIgnoreUpdate) flags |= FLAG_AS_IGNORE_UPDATE;
+        if (mQhIgnore) flags |= FLAG_QH_IGNORE;
+        if (mHeadsUpDnd) flags |= FLAG_HEADS_UP_DND;
+        if (mProgressTracking) flags |= FLAG_PROGRESS_TRACKING;
+        if (mSoundToVibrateDisabled) flags |= FLAG_SOUND_TO_VIBRATE_DISABLED;
+        if (mHidePersistent) flags |= FLAG_HIDE_PERSISTENT;
+        if (mLedIgnoreUpdate) flags |= FLAG_LED_IGNORE_UPDATE;
+        out.writeInt(flags);
+        out.writeInt(mLedOnMs);
+        out.writeInt(mLedOffMs);
+        out.writeInt(mColor);
+        out.writeInt(mHeadsUpTimeout);
+        out.writeLong(mSoundOnlyOnceTimeout);
+        out.writeByte(mActiveScreenMode.ordinal());
+        out.writeByte(mLedMode.ordinal());
+        out.writeByte(mHeadsUpMode.ordinal());
+        out.writeByte(mVisibility.ordinal());
+        out.writeByte(mVisibilityLs.ordinal());
+        writeString(out, mSoundUri == null ? null : mSoundUri.toString());
+        if (mVibratePattern == null) {
+            out.writeInt(-1);
+        } else {
+            out.writeInt(mVibratePattern.length);
+            for (long val : mVibratePattern) {
+                out.writeLong(val);
+            }
+        }
+        writeString(out, mQhIgnoreList);
+        writeString(out, mLedDnd);
+    }
+
+    protected static String readString(ByteBuffer buf) {
+        final int len = buf.getInt();
+        if (len < 0) return null;
+        byte[] data = new byte[len];
+        buf.get(data);
+        return new String(data, StandardCharsets.UTF_8);
+    }
+
+    protected static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+        } else {
+            byte[] data = value.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(data.length);
+            out.write(data);
+        }
+    }
+
     private LedSettings(Context context, String packageName) {
         mContext = context;
         mPackageName = packageName;
@@ -363,6 +487,7 @@ public class LedSettings {
 
     protected void setQhIgnoreList(String ignoreList) {
         mQhIgnoreList = ignoreList;
+        mQhIgnoreMatcher = null;
     }
 
     protected void setHeadsUpMode(HeadsUpMode mode) {
@@ -482,6 +607,15 @@ public class LedSettings {
     }
 
     public String getVibratePatternAsString() {
+        // records loaded from LedSettingsStore carry parsed pattern only
+        if (mVibratePatternStr == null && mVibratePattern != null) {
+            StringBuilder buf = new StringBuilder();
+            for (int i = 0; i < mVibratePattern.length; i++) {
+                if (i > 0) buf.append(",");
+                buf.append(mVibratePattern[i]);
+            }
+            mVibratePatternStr = buf.toString();
+        }
         return mVibratePatternStr;
     }
 
@@ -513,6 +647,14 @@ public class LedSettings {
         return mQhIgnoreList;
     }
 
+    public synchronized KeywordMatcher getQhIgnoreMatcher() {
+        if (mQhIgnoreMatcher == null) {
+            mQhIgnoreMatcher = new KeywordMatcher(mQhIgnoreList == null ?
+                    new String[0] : mQhIgnoreList.trim().split(","));
+        }
+        return mQhIgnoreMatcher;
+    }
+
     public HeadsUpMode getHeadsUpMode() {
         return mHeadsUpMode;
     }
@@ -594,6 +736,7 @@ public class LedSettings {
             SharedPreferences prefs = mContext.getSharedPreferences(
                     "ledcontrol", Context.MODE_WORLD_READABLE);
             prefs.edit().putStringSet(mPackageName, dataSet).commit();
+            LedSettingsStore.write(mContext);
             Intent intent = new Intent(ACTION_UNC_SETTINGS_CHANGED);
             mContext.sendBroadcast(intent);
         } catch (Throwable t) {
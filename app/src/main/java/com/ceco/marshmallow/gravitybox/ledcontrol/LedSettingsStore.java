@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2017 Peter Gregus for GravityBox Project (C3C076@xda)
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ceco.marshmallow.gravitybox.ledcontrol;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.ceco.marshmallow.gravitybox.GravityBox;
+
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.os.Environment;
+import android.util.Log;
+
+/*
+ * Compact binary copy of per-app LedSettings kept in GravityBox files dir.
+ * ledcontrol.xml remains the source of truth for settings UI and backups,
+ * this file is regenerated from it whenever LedSettings get serialized.
+ *
+ * Layout: MAGIC, VERSION, count, count x (package name, record offset), records
+ */
+public class LedSettingsStore {
+    private static final String TAG = "GB:LedSettingsStore";
+    public static final String FILE_NAME = "ledcontrol.bin";
+    private static final int MAGIC = 0x47424C53; // GBLS
+    public static final int VERSION = 1;
+
+    private File mFile;
+    private ByteBuffer mBuffer;
+    private Map<String, Integer> mIndex;
+    private long mLastModified;
+
+    public LedSettingsStore(File file) {
+        mFile = file;
+    }
+
+    public static File getSystemFile() {
+        return new File(Environment.getDataDirectory(), "data/" +
+                GravityBox.PACKAGE_NAME + "/files/" + FILE_NAME);
+    }
+
+    public synchronized boolean reload() {
+        mBuffer = null;
+        mIndex = null;
+        mLastModified = mFile.lastModified();
+        if (!mFile.canRead()) return false;
+
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(mFile, "r");
+            FileChannel channel = raf.getChannel();
+            ByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buf.getInt() != MAGIC || buf.getInt() != VERSION) {
+                Log.w(TAG, "Unsupported file format: " + mFile);
+                return false;
+            }
+            final int count = buf.getInt();
+            Map<String, Integer> index = new HashMap<>(count);
+            for (int i = 0; i < count; i++) {
+                String pkgName = LedSettings.readString(buf);
+                index.put(pkgName, buf.getInt());
+            }
+            final int dataStart = buf.position();
+            for (Map.Entry<String, Integer> entry : index.entrySet()) {
+                entry.setValue(dataStart + entry.getValue());
+            }
+            mBuffer = buf;
+            mIndex = index;
+            return true;
+        } catch (Throwable t) {
+            Log.e(TAG, "Error loading " + mFile, t);
+            return false;
+        } finally {
+            // mapping stays valid after channel is closed
+            if (raf != null) {
+                try { raf.close(); } catch (IOException e) { }
+            }
+        }
+    }
+
+    public synchronized boolean reloadIfChanged() {
+        if (mLastModified != mFile.lastModified()) {
+            return reload();
+        }
+        return isValid();
+    }
+
+    public synchronized boolean isValid() {
+        return (mIndex != null);
+    }
+
+    public synchronized LedSettings get(String packageName) {
+        Integer offset = mIndex == null ? null : mIndex.get(packageName);
+        if (offset == null) {
+            return LedSettings.deserialize((Set<String>) null);
+        }
+        ByteBuffer buf = mBuffer.duplicate();
+        buf.position(offset);
+        LedSettings ls = LedSettings.readRecord(buf);
+        ls.setPackageName(packageName);
+        return ls;
+    }
+
+    public static boolean write(Context context) {
+        try {
+            SharedPreferences prefs = context.getSharedPreferences(
+                    "ledcontrol", Context.MODE_WORLD_READABLE);
+            List<String> names = new ArrayList<>();
+            List<Integer> offsets = new ArrayList<>();
+            ByteArrayOutputStream data = new ByteArrayOutputStream();
+            DataOutputStream dataOut = new DataOutputStream(data);
+            for (Map.Entry<String, ?> entry : prefs.getAll().entrySet()) {
+                if (!(entry.getValue() instanceof Set)) continue;
+                @SuppressWarnings("unchecked")
+                LedSettings ls = LedSettings.deserialize((Set<String>) entry.getValue());
+                names.add(entry.getKey());
+                offsets.add(dataOut.size());
+                ls.writeRecord(dataOut);
+            }
+            dataOut.flush();
+
+            File file = new File(context.getFilesDir(), FILE_NAME);
+            File tmpFile = new File(context.getFilesDir(), FILE_NAME + ".tmp");
+            DataOutputStream out = new DataOutputStream(new FileOutputStream(tmpFile));
+            try {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(names.size());
+                for (int i = 0; i < names.size(); i++) {
+                    LedSettings.writeString(out, names.get(i));
+                    out.writeInt(offsets.get(i));
+                }
+                data.writeTo(out);
+            } finally {
+                out.close();
+            }
+            tmpFile.setReadable(true, false);
+            if (!tmpFile.renameTo(file)) {
+                tmpFile.delete();
+                return false;
+            }
+            return true;
+        } catch (Throwable t) {
+            Log.e(TAG, "Error writing " + FILE_NAME, t);
+            return false;
+        }
+    }
+
+    // builds binary store from ledcontrol.xml if it doesn't exist yet or has an older format
+    public static void migrateIfNeeded(Context context) {
+        LedSettingsStore store = new LedSettingsStore(
+                new File(context.getFilesDir(), FILE_NAME));
+        if (!store.reload() && write(context)) {
+            context.sendBroadcast(new Intent(LedSettings.ACTION_UNC_SETTINGS_CHANGED));
+        }
+    }
+}
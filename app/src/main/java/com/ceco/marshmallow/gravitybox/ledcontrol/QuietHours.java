@@ -20,7 +20,6 @@ import java.util.Calendar;
 import java.util.GregorianCalendar;
 import java.util.HashSet;
 import java.util.List;
-import java.util.Locale;
 import java.util.Set;
 
 import com.ceco.marshmallow.gravitybox.ModLedControl;
@@ -60,6 +59,11 @@ public class QuietHours {
     Set<String> weekDays;
     public boolean muteSystemVibe;
 
+    // AUTO mode state is cached until the next possible transition
+    private boolean mCachedActive;
+    private long mCacheValidFrom;
+    private long mCacheValidUntil;
+
     public QuietHours(SharedPreferences prefs) {
         enabled = prefs.getBoolean(QuietHoursActivity.PREF_KEY_QH_ENABLED, false);
         start = prefs.getInt(QuietHoursActivity.PREF_KEY_QH_START, 1380);
@@ -86,17 +90,9 @@ public class QuietHours {
                 if (ModLedControl.DEBUG) ModLedControl.log("QH ignored for all notifications");
                 return false;
             } else {
-                List<String> notifTexts = getNotificationTexts(n);
-                String[] keywords = ls.getQhIgnoreList().trim().split(",");
-                boolean ignore = false;
-                for (String kw : keywords) {
-                    kw = kw.toLowerCase(Locale.getDefault());
-                    ignore |= n.tickerText != null && n.tickerText.toString()
-                            .toLowerCase(Locale.getDefault()).contains(kw);
-                    for (String notifText : notifTexts) {
-                        ignore |= notifText.toLowerCase(Locale.getDefault()).contains(kw);
-                    }
-                }
+                final KeywordMatcher matcher = ls.getQhIgnoreMatcher();
+                final boolean ignore = matcher.matches(n.tickerText) ||
+                        notificationTextMatches(n, matcher);
                 if (ModLedControl.DEBUG) ModLedControl.log("QH ignore list contains keyword?: " + ignore);
                 return (ignore ? false : (quietHoursActive() || (interactive && userPresent)));
             }
@@ -112,8 +108,65 @@ public class QuietHours {
             return (mode == Mode.ON ? true : false);
         }
 
-        Calendar c = new GregorianCalendar();
-        c.setTimeInMillis(System.currentTimeMillis());
+        final long now = System.currentTimeMillis();
+        synchronized (this) {
+            if (now < mCacheValidFrom || now >= mCacheValidUntil) {
+                Calendar c = new GregorianCalendar();
+                c.setTimeInMillis(now);
+                mCachedActive = computeQuietHoursActive(c, now);
+                mCacheValidFrom = now;
+                mCacheValidUntil = computeNextTransitionTime(c, now);
+                if (ModLedControl.DEBUG) ModLedControl.log("Quiet hours active: " + mCachedActive +
+                        "; next transition at " + mCacheValidUntil);
+            }
+            return mCachedActive;
+        }
+    }
+
+    /**
+     * Returns time in ms when result of quietHoursActive() may change next
+     * or Long.MAX_VALUE when it's not driven by schedule
+     */
+    public long getNextTransitionTime() {
+        if (!enabled || mode != Mode.AUTO) return Long.MAX_VALUE;
+
+        quietHoursActive();
+        synchronized (this) {
+            return mCacheValidUntil;
+        }
+    }
+
+    // to be called when system time or timezone changes
+    public synchronized void invalidateSchedule() {
+        mCacheValidFrom = 0;
+        mCacheValidUntil = 0;
+    }
+
+    // all schedule decisions depend on day of week and comparisons of current minute
+    // with start/end times so result is constant until one of those boundaries is crossed
+    private long computeNextTransitionTime(Calendar c, long nowMs) {
+        final int[] boundaries = new int[] { 0, start, start+1, end, end+1,
+                startAlt, startAlt+1, endAlt, endAlt+1 };
+        long next = Long.MAX_VALUE;
+        for (int day = 0; day < 2; day++) {
+            for (int minute : boundaries) {
+                // set wall clock time directly so that boundaries stay correct on DST change days
+                c.setTimeInMillis(nowMs);
+                c.add(Calendar.DAY_OF_YEAR, day + minute / 1440);
+                c.set(Calendar.HOUR_OF_DAY, (minute % 1440) / 60);
+                c.set(Calendar.MINUTE, minute % 60);
+                c.set(Calendar.SECOND, 0);
+                c.set(Calendar.MILLISECOND, 0);
+                final long t = c.getTimeInMillis();
+                if (t > nowMs && t < next) {
+                    next = t;
+                }
+            }
+        }
+        return next;
+    }
+
+    private boolean computeQuietHoursActive(Calendar c, long nowMs) {
         int curMin = c.get(Calendar.HOUR_OF_DAY) * 60 + c.get(Calendar.MINUTE);
         int dayOfWeek = c.get(Calendar.DAY_OF_WEEK);
         int s = start; 
@@ -157,7 +210,7 @@ public class QuietHours {
             }
         }
 
-        return (Utils.isTimeOfDayInRange(System.currentTimeMillis(), s, e));
+        return (Utils.isTimeOfDayInRange(nowMs, s, e));
     }
 
     public boolean isSystemSoundMuted(String systemSound) {
@@ -176,6 +229,41 @@ public class QuietHours {
                     weekDays.contains(String.valueOf(nextDay)));
     }
 
+    private static final String[] NOTIF_TEXT_EXTRAS = new String[] {
+        Notification.EXTRA_TITLE, Notification.EXTRA_TITLE_BIG,
+        Notification.EXTRA_TEXT, Notification.EXTRA_BIG_TEXT,
+        Notification.EXTRA_SUB_TEXT, Notification.EXTRA_SUMMARY_TEXT,
+        Notification.EXTRA_INFO_TEXT
+    };
+
+    private boolean notificationTextMatches(Notification n, KeywordMatcher matcher) {
+        boolean hasText = false;
+        if (n.extras != null) {
+            for (String key : NOTIF_TEXT_EXTRAS) {
+                CharSequence text = n.extras.getCharSequence(key);
+                if (text != null) {
+                    if (matcher.matches(text)) return true;
+                    hasText = true;
+                }
+            }
+            CharSequence[] lines = n.extras.getCharSequenceArray(Notification.EXTRA_TEXT_LINES);
+            if (lines != null) {
+                for (CharSequence line : lines) {
+                    if (matcher.matches(line)) return true;
+                    hasText = true;
+                }
+            }
+        }
+
+        // custom content views only: fall back to parsing RemoteViews actions
+        if (!hasText) {
+            for (String notifText : getNotificationTexts(n)) {
+                if (matcher.matches(notifText)) return true;
+            }
+        }
+        return false;
+    }
+
     private List<String> getNotificationTexts(Notification notification) {
         List<String> texts = new ArrayList<String>();
 
@@ -23,6 +23,7 @@ import java.util.List;
 
 import com.ceco.marshmallow.gravitybox.BroadcastSubReceiver;
 import com.ceco.marshmallow.gravitybox.GravityBoxSettings;
+import com.ceco.marshmallow.gravitybox.IconCache;
 import com.ceco.marshmallow.gravitybox.R;
 import com.ceco.marshmallow.gravitybox.Utils;
 import com.ceco.marshmallow.gravitybox.preference.AppPickerPreference;
@@ -311,6 +312,8 @@ public class AppLauncher implements BroadcastSubReceiver {
         return new AppInfo(0);
     }
 
+    public static final int DEFAULT_ICON_SIZE_DP = 50;
+
     public final class AppInfo {
         private String mAppName;
         private Drawable mAppIcon;
@@ -322,7 +325,7 @@ public class AppLauncher implements BroadcastSubReceiver {
 
         public AppInfo(int resId) {
             mResId = resId;
-            mSizeDp = 50;
+            mSizeDp = DEFAULT_ICON_SIZE_DP;
         }
 
         public int getResId() {
@@ -398,7 +401,10 @@ public class AppLauncher implements BroadcastSubReceiver {
 
                 if (loadLabelAndIcon) {
                     final int mode = mIntent.getIntExtra("mode", AppPickerPreference.MODE_APP);
+                    final int sizePx = (int) TypedValue.applyDimension(TypedValue.COMPLEX_UNIT_DIP, mSizeDp, 
+                            mResources.getDisplayMetrics());
                     Bitmap appIcon = null;
+                    boolean appIconScaled = false;
                     final int iconResId = mIntent.getStringExtra("iconResName") != null ?
                             mGbResources.getIdentifier(mIntent.getStringExtra("iconResName"),
                             "drawable", mGbContext.getPackageName()) : 0;
@@ -420,15 +426,16 @@ public class AppLauncher implements BroadcastSubReceiver {
                         ActivityInfo ai = mPm.getActivityInfo(mIntent.getComponent(), 0);
                         mAppName = ai.loadLabel(mPm).toString();
                         if (appIcon == null) {
-                            appIcon = Utils.drawableToBitmap(ai.loadIcon(mPm));
+                            appIcon = IconCache.getInstance(mContext).getIcon(ai, sizePx,
+                                    IconCache.getInstance(mContext).getLastUpdateTime(ai.packageName));
+                            appIconScaled = true;
                         }
                     } else if (mode == AppPickerPreference.MODE_SHORTCUT) {
                         mAppName = mIntent.getStringExtra("label");
                     }
                     if (appIcon != null) {
-                        int sizePx = (int) TypedValue.applyDimension(TypedValue.COMPLEX_UNIT_DIP, mSizeDp, 
-                                mResources.getDisplayMetrics());
-                        Bitmap scaledIcon = Bitmap.createScaledBitmap(appIcon, sizePx, sizePx, true);
+                        Bitmap scaledIcon = appIconScaled ? appIcon :
+                                Bitmap.createScaledBitmap(appIcon, sizePx, sizePx, true);
                         mAppIcon = new BitmapDrawable(mResources, scaledIcon);
                     }
                 }
@@ -26,10 +26,13 @@ import com.ceco.marshmallow.gravitybox.ledcontrol.QuietHoursActivity;
 
 import de.robv.android.xposed.XSharedPreferences;
 import de.robv.android.xposed.XposedBridge;
+import android.app.AlarmManager;
+import android.app.PendingIntent;
 import android.content.Context;
 import android.content.Intent;
 
 public class StatusbarQuietHoursManager implements BroadcastSubReceiver {
+    public static final String ACTION_QUIET_HOURS_TRANSITION = "gravitybox.intent.action.QUIET_HOURS_TRANSITION";
 
     private static final Object lock = new Object();
     private static StatusbarQuietHoursManager sManager;
@@ -38,6 +41,7 @@ public class StatusbarQuietHoursManager implements BroadcastSubReceiver {
     private XSharedPreferences mPrefs;
     private QuietHours mQuietHours;
     private List<QuietHoursListener> mListeners;
+    private PendingIntent mTransitionIntent;
 
     public interface QuietHoursListener {
         public void onQuietHoursChanged();
@@ -63,9 +67,15 @@ public class StatusbarQuietHoursManager implements BroadcastSubReceiver {
     @Override
     public void onBroadcastReceived(Context context, Intent intent) {
         final String action = intent.getAction();
-        if (action.equals(Intent.ACTION_TIME_TICK) ||
-                action.equals(Intent.ACTION_TIME_CHANGED) ||
+        if (action.equals(Intent.ACTION_TIME_CHANGED) ||
                 action.equals(Intent.ACTION_TIMEZONE_CHANGED)) {
+            if (mQuietHours != null) {
+                mQuietHours.invalidateSchedule();
+            }
+            scheduleNextTransition();
+            notifyTimeTick();
+        } else if (action.equals(ACTION_QUIET_HOURS_TRANSITION)) {
+            scheduleNextTransition();
             notifyTimeTick();
         } else if (action.equals(QuietHoursActivity.ACTION_QUIET_HOURS_CHANGED)) {
             refreshState();
@@ -97,6 +107,27 @@ public class StatusbarQuietHoursManager implements BroadcastSubReceiver {
                 mPrefs.reload();
             }
             mQuietHours = new QuietHours(mPrefs);
+            scheduleNextTransition();
+        } catch (Throwable t) {
+            XposedBridge.log(t);
+        }
+    }
+
+    // listeners get notified exactly when quiet hours schedule changes its state
+    private void scheduleNextTransition() {
+        try {
+            AlarmManager am = (AlarmManager) mContext.getSystemService(Context.ALARM_SERVICE);
+            if (mTransitionIntent != null) {
+                am.cancel(mTransitionIntent);
+                mTransitionIntent = null;
+            }
+            final long next = mQuietHours == null ? Long.MAX_VALUE :
+                    mQuietHours.getNextTransitionTime();
+            if (next != Long.MAX_VALUE) {
+                mTransitionIntent = PendingIntent.getBroadcast(mContext, 0,
+                        new Intent(ACTION_QUIET_HOURS_TRANSITION), 0);
+                am.setExact(AlarmManager.RTC, next, mTransitionIntent);
+            }
         } catch (Throwable t) {
             XposedBridge.log(t);
         }
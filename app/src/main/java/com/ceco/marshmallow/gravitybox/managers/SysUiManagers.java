@@ -81,7 +81,7 @@ public class SysUiManagers {
         intentFilter.addAction(GravityBoxSettings.ACTION_PREF_STATUSBAR_COLOR_CHANGED);
 
         // quiet hours manager
-        intentFilter.addAction(Intent.ACTION_TIME_TICK);
+        intentFilter.addAction(StatusbarQuietHoursManager.ACTION_QUIET_HOURS_TRANSITION);
         intentFilter.addAction(Intent.ACTION_TIME_CHANGED);
         intentFilter.addAction(Intent.ACTION_TIMEZONE_CHANGED);
         intentFilter.addAction(QuietHoursActivity.ACTION_QUIET_HOURS_CHANGED);
@@ -0,0 +1,320 @@
+/*
+ * Copyright (C) 2017 Peter Gregus for GravityBox Project (C3C076@xda)
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ceco.marshmallow.gravitybox.preference;
+
+import java.text.Collator;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import android.content.BroadcastReceiver;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.SharedPreferences;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.content.pm.PackageManager.NameNotFoundException;
+import android.content.pm.ResolveInfo;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+/*
+ * Process-wide index of launcher and create-shortcut activities used by app pickers.
+ * Each list is built with a single queryIntentActivities call and kept up to date
+ * incrementally on package changes. Labels are persisted together with
+ * package version so they don't have to be loaded again on next start.
+ */
+public class AppListIndex {
+    private static final String TAG = "GB:AppListIndex";
+    private static final boolean DEBUG = false;
+    private static final String LABEL_PREFS = "app_picker_labels";
+
+    public static final class Entry {
+        public final ResolveInfo resolveInfo;
+        public final String label;
+
+        private Entry(ResolveInfo ri, String label) {
+            this.resolveInfo = ri;
+            this.label = label;
+        }
+
+        public String getPackageName() {
+            return resolveInfo.activityInfo.packageName;
+        }
+    }
+
+    public interface OnIndexReadyListener {
+        void onIndexReady(List<Entry> entries);
+    }
+
+    private static AppListIndex sInstance;
+
+    private Context mContext;
+    private PackageManager mPackageManager;
+    private SharedPreferences mLabelPrefs;
+    private ExecutorService mExecutor;
+    private Handler mHandler;
+    // indexed by AppPickerPreference mode
+    private List<Entry>[] mEntries;
+    private Map<String, String> mPackageStamps;
+    private Map<String, Long> mLastUpdateTimes = new HashMap<String, Long>();
+
+    public static synchronized AppListIndex getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new AppListIndex(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    @SuppressWarnings("unchecked")
+    private AppListIndex(Context context) {
+        mContext = context;
+        mPackageManager = context.getPackageManager();
+        mLabelPrefs = context.getSharedPreferences(LABEL_PREFS, Context.MODE_PRIVATE);
+        mExecutor = Executors.newSingleThreadExecutor();
+        mHandler = new Handler(context.getMainLooper());
+        mEntries = new List[2];
+
+        IntentFilter intentFilter = new IntentFilter();
+        intentFilter.addAction(Intent.ACTION_PACKAGE_ADDED);
+        intentFilter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        intentFilter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+        intentFilter.addDataScheme("package");
+        mContext.registerReceiver(mPackageReceiver, intentFilter);
+    }
+
+    private BroadcastReceiver mPackageReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            final Uri data = intent.getData();
+            if (data == null) return;
+            final String pkgName = data.getSchemeSpecificPart();
+            final boolean removed = Intent.ACTION_PACKAGE_REMOVED.equals(intent.getAction()) &&
+                    !intent.getBooleanExtra(Intent.EXTRA_REPLACING, false);
+            if (DEBUG) Log.d(TAG, intent.getAction() + ": " + pkgName);
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    updatePackage(pkgName, removed);
+                }
+            });
+        }
+    };
+
+    /**
+     * Starts building index in background if not built yet
+     */
+    public void preload() {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                for (int mode = 0; mode < mEntries.length; mode++) {
+                    ensureLoaded(mode);
+                }
+            }
+        });
+    }
+
+    /**
+     * @return entries sorted by label or null if index for given mode is not ready yet
+     */
+    public synchronized List<Entry> getEntries(int mode) {
+        return mEntries[mode];
+    }
+
+    /**
+     * Delivers entries to listener on main thread once available.
+     * Listener is called synchronously when index is already built.
+     */
+    public void getEntriesAsync(final int mode, final OnIndexReadyListener listener) {
+        List<Entry> entries = getEntries(mode);
+        if (entries != null) {
+            listener.onIndexReady(entries);
+            return;
+        }
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final List<Entry> entries = ensureLoaded(mode);
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.onIndexReady(entries);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * @return last update time of indexed package or 0 if unknown
+     */
+    public synchronized long getLastUpdateTime(String pkgName) {
+        Long time = mLastUpdateTimes.get(pkgName);
+        return (time == null ? 0 : time);
+    }
+
+    private synchronized void setLastUpdateTime(String pkgName, long time) {
+        if (time == 0) {
+            mLastUpdateTimes.remove(pkgName);
+        } else {
+            mLastUpdateTimes.put(pkgName, time);
+        }
+    }
+
+    private static Intent createQueryIntent(int mode) {
+        Intent intent = new Intent();
+        if (mode == AppPickerPreference.MODE_SHORTCUT) {
+            intent.setAction(Intent.ACTION_CREATE_SHORTCUT);
+        } else {
+            intent.setAction(Intent.ACTION_MAIN);
+            intent.addCategory(Intent.CATEGORY_LAUNCHER);
+        }
+        return intent;
+    }
+
+    // executor thread only
+    private List<Entry> ensureLoaded(int mode) {
+        List<Entry> entries = getEntries(mode);
+        if (entries != null) return entries;
+
+        final long startTime = SystemClock.elapsedRealtime();
+        if (mPackageStamps == null) {
+            mPackageStamps = new HashMap<String, String>();
+            for (PackageInfo pi : mPackageManager.getInstalledPackages(0)) {
+                mPackageStamps.put(pi.packageName, createStamp(pi));
+                setLastUpdateTime(pi.packageName, pi.lastUpdateTime);
+            }
+        }
+
+        List<ResolveInfo> riList = mPackageManager.queryIntentActivities(createQueryIntent(mode), 0);
+        entries = new ArrayList<Entry>(riList.size());
+        SharedPreferences.Editor editor = mLabelPrefs.edit();
+        for (ResolveInfo ri : riList) {
+            entries.add(createEntry(ri, editor));
+        }
+        editor.apply();
+        sortEntries(entries);
+
+        synchronized (this) {
+            mEntries[mode] = Collections.unmodifiableList(entries);
+        }
+        if (DEBUG) Log.d(TAG, "Index for mode " + mode + " built in " +
+                (SystemClock.elapsedRealtime() - startTime) + "ms; entries=" + entries.size());
+        return getEntries(mode);
+    }
+
+    // executor thread only
+    private void updatePackage(String pkgName, boolean removed) {
+        if (mPackageStamps == null) return;
+
+        if (removed) {
+            mPackageStamps.remove(pkgName);
+            setLastUpdateTime(pkgName, 0);
+        } else {
+            try {
+                PackageInfo pi = mPackageManager.getPackageInfo(pkgName, 0);
+                mPackageStamps.put(pkgName, createStamp(pi));
+                setLastUpdateTime(pkgName, pi.lastUpdateTime);
+            } catch (NameNotFoundException e) {
+                mPackageStamps.remove(pkgName);
+                setLastUpdateTime(pkgName, 0);
+                removed = true;
+            }
+        }
+
+        for (int mode = 0; mode < mEntries.length; mode++) {
+            List<Entry> current = getEntries(mode);
+            if (current == null) continue;
+
+            List<Entry> entries = new ArrayList<Entry>(current);
+            SharedPreferences.Editor editor = mLabelPrefs.edit();
+            Iterator<Entry> it = entries.iterator();
+            while (it.hasNext()) {
+                Entry entry = it.next();
+                if (entry.getPackageName().equals(pkgName)) {
+                    it.remove();
+                    if (removed) {
+                        editor.remove(getLabelKey(entry.resolveInfo));
+                    }
+                }
+            }
+            if (!removed) {
+                Intent intent = createQueryIntent(mode);
+                intent.setPackage(pkgName);
+                for (ResolveInfo ri : mPackageManager.queryIntentActivities(intent, 0)) {
+                    entries.add(createEntry(ri, editor));
+                }
+                sortEntries(entries);
+            }
+            editor.apply();
+            synchronized (this) {
+                mEntries[mode] = Collections.unmodifiableList(entries);
+            }
+        }
+        if (DEBUG) Log.d(TAG, "Index updated for " + pkgName + "; removed=" + removed);
+    }
+
+    private static String getLabelKey(ResolveInfo ri) {
+        return new ComponentName(ri.activityInfo.packageName,
+                ri.activityInfo.name).flattenToString();
+    }
+
+    private Entry createEntry(ResolveInfo ri, SharedPreferences.Editor editor) {
+        final String key = getLabelKey(ri);
+        final String stamp = mPackageStamps.get(ri.activityInfo.packageName);
+        String label = null;
+        if (stamp != null) {
+            String stored = mLabelPrefs.getString(key, null);
+            if (stored != null && stored.startsWith(stamp)) {
+                label = stored.substring(stamp.length());
+            }
+        }
+        if (label == null) {
+            label = ri.loadLabel(mPackageManager).toString();
+            if (stamp != null) {
+                editor.putString(key, stamp + label);
+            }
+        }
+        return new Entry(ri, label);
+    }
+
+    // labels depend on locale as well
+    private static String createStamp(PackageInfo pi) {
+        return pi.versionCode + ":" + pi.lastUpdateTime + ":" + Locale.getDefault().toString() + "|";
+    }
+
+    private static void sortEntries(List<Entry> entries) {
+        final Collator collator = Collator.getInstance();
+        Collections.sort(entries, new Comparator<Entry>() {
+            @Override
+            public int compare(Entry lhs, Entry rhs) {
+                return collator.compare(lhs.label, rhs.label);
+            }
+        });
+    }
+}
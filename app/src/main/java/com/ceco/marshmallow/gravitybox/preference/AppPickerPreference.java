@@ -23,14 +23,13 @@ import java.io.IOException;
 import java.net.URISyntaxException;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
 
+import com.ceco.marshmallow.gravitybox.IconCache;
 import com.ceco.marshmallow.gravitybox.R;
-import com.ceco.marshmallow.gravitybox.Utils;
 import com.ceco.marshmallow.gravitybox.GravityBoxSettings;
 import com.ceco.marshmallow.gravitybox.GravityBoxSettings.PrefsFragment;
 import com.ceco.marshmallow.gravitybox.GravityBoxSettings.PrefsFragment.IconPickHandler;
@@ -38,6 +37,7 @@ import com.ceco.marshmallow.gravitybox.GravityBoxSettings.PrefsFragment.Shortcut
 import com.ceco.marshmallow.gravitybox.adapters.BasicIconListItem;
 import com.ceco.marshmallow.gravitybox.adapters.IIconListAdapterItem;
 import com.ceco.marshmallow.gravitybox.adapters.IconListAdapter;
+import com.ceco.marshmallow.gravitybox.managers.AppLauncher;
 import com.ceco.marshmallow.gravitybox.shortcuts.ShortcutActivity;
 
 import android.app.AlertDialog;
@@ -48,7 +48,6 @@ import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.SharedPreferences;
 import android.content.pm.ActivityInfo;
-import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.content.pm.ResolveInfo;
 import android.content.res.Resources;
@@ -65,7 +64,6 @@ import android.text.Editable;
 import android.text.TextWatcher;
 import android.util.AttributeSet;
 import android.util.Log;
-import android.util.LruCache;
 import android.util.TypedValue;
 import android.view.Gravity;
 import android.view.View;
@@ -100,7 +98,6 @@ public class AppPickerPreference extends DialogPreference
     private ListView mListView;
     private EditText mSearch;
     private ProgressBar mProgressBar;
-    private AsyncTask<Void, Void, ArrayList<IIconListAdapterItem>> mAsyncTask;
     private String mDefaultSummaryText;
     private int mAppIconSizePx;
     private PackageManager mPackageManager;
@@ -121,17 +118,6 @@ public class AppPickerPreference extends DialogPreference
     private boolean mAllowGravityBoxActions;
     private Bundle mExtraData;
 
-    private static LruCache<String, BitmapDrawable> sAppIconCache;
-    static {
-        final int cacheSize = Math.min((int)Runtime.getRuntime().maxMemory() / 6, 4194304);
-        sAppIconCache = new LruCache<String, BitmapDrawable>(cacheSize) {
-            @Override
-            protected int sizeOf(String key, BitmapDrawable d) {
-                return d.getBitmap().getByteCount();
-            }
-        };
-    }
-
     public static void cleanupAsync(final Context context) {
         new AsyncTask<Void,Void,Void>() {
             @Override
@@ -223,6 +209,8 @@ public class AppPickerPreference extends DialogPreference
         if (sIconPickerAdapter == null) {
             initializeIconPickerAdapter();
         }
+
+        AppListIndex.getInstance(mContext).preload();
     }
 
     private void initializeIconPickerAdapter() {
@@ -334,10 +322,7 @@ public class AppPickerPreference extends DialogPreference
 
     @Override
     public void onDismiss(DialogInterface dialog) {
-        if (mAsyncTask != null && mAsyncTask.getStatus() == AsyncTask.Status.RUNNING) {
-            mAsyncTask.cancel(true);
-        }
-        mAsyncTask = null;
+        mListView = null;
 
         if (mIconPickerDialog != null && mIconPickerDialog.isShowing()) {
             mIconPickerDialog.dismiss();
@@ -472,76 +457,79 @@ public class AppPickerPreference extends DialogPreference
     }
 
     private void setData() {
-        mAsyncTask = new AsyncTask<Void,Void,ArrayList<IIconListAdapterItem>>() {
+        mListView.setVisibility(View.INVISIBLE);
+        mSearch.setVisibility(View.GONE);
+        mProgressBar.setVisibility(View.VISIBLE);
+
+        final int mode = mMode;
+        final ListView listView = mListView;
+        AppListIndex.getInstance(mContext).getEntriesAsync(mode,
+                new AppListIndex.OnIndexReadyListener() {
             @Override
-            protected void onPreExecute()
-            {
-                super.onPreExecute();
-
-                mListView.setVisibility(View.INVISIBLE);
-                mSearch.setVisibility(View.GONE);
-                mProgressBar.setVisibility(View.VISIBLE);
-            }
+            public void onIndexReady(List<AppListIndex.Entry> entries) {
+                // ignore results for dismissed dialog or previously selected mode
+                if (listView != mListView || mode != mMode) return;
 
-            @Override
-            protected ArrayList<IIconListAdapterItem> doInBackground(Void... arg0) {
-                ArrayList<IIconListAdapterItem> itemList = new ArrayList<IIconListAdapterItem>();
-                List<ResolveInfo> appList = new ArrayList<ResolveInfo>();
-
-                List<PackageInfo> packages = mPackageManager.getInstalledPackages(0);
-                Intent mainIntent = new Intent();
-                if (mMode == MODE_APP) {
-                    mainIntent.setAction(Intent.ACTION_MAIN);
-                    mainIntent.addCategory(Intent.CATEGORY_LAUNCHER);
-                } else if (mMode == MODE_SHORTCUT) {
-                    mainIntent.setAction(Intent.ACTION_CREATE_SHORTCUT);
-                }
-                for(PackageInfo pi : packages) {
-                    if (this.isCancelled()) break;
-                    if (mMode == MODE_SHORTCUT &&
-                            pi.packageName.equals(mContext.getPackageName()) &&
-                                    !mAllowGravityBoxActions)
-                        continue;
-                    mainIntent.setPackage(pi.packageName);
-                    List<ResolveInfo> activityList = mPackageManager.queryIntentActivities(mainIntent, 0);
-                    for(ResolveInfo ri : activityList) {
-                        appList.add(ri);
-                    }
-                }
-
-                Collections.sort(appList, new ResolveInfo.DisplayNameComparator(mPackageManager));
+                ArrayList<IIconListAdapterItem> itemList =
+                        new ArrayList<IIconListAdapterItem>(entries.size() + 1);
                 if (mNullItemEnabled) {
-                    itemList.add(mMode == MODE_SHORTCUT ? 
+                    itemList.add(mode == MODE_SHORTCUT ? 
                         new ShortcutItem(mContext.getString(R.string.app_picker_none), null) :
                         new AppItem(mContext.getString(R.string.app_picker_none), null));
                 }
-                for (ResolveInfo ri : appList) {
-                    if (this.isCancelled()) break;
-                    String appName = ri.loadLabel(mPackageManager).toString();
-                    IIconListAdapterItem ai = mMode == MODE_SHORTCUT ?
-                            new ShortcutItem(appName, ri) : new AppItem(appName, ri);
-                    itemList.add(ai);
+                for (AppListIndex.Entry entry : entries) {
+                    if (mode == MODE_SHORTCUT &&
+                            entry.getPackageName().equals(mContext.getPackageName()) &&
+                                    !mAllowGravityBoxActions)
+                        continue;
+                    itemList.add(mode == MODE_SHORTCUT ?
+                            new ShortcutItem(entry.label, entry.resolveInfo) :
+                            new AppItem(entry.label, entry.resolveInfo));
                 }
 
-                return itemList;
-            }
-
-            @Override
-            protected void onPostExecute(ArrayList<IIconListAdapterItem> result)
-            {
                 mProgressBar.setVisibility(View.GONE);
                 mSearch.setVisibility(View.VISIBLE);
-                mListView.setAdapter(new IconListAdapter(mContext, result));
+                mListView.setAdapter(new IconListAdapter(mContext, itemList));
                 ((IconListAdapter)mListView.getAdapter()).notifyDataSetChanged();
                 mListView.setVisibility(View.VISIBLE);
             }
-        }.execute();
+        });
+    }
+
+    private long getLastUpdateTime(String pkgName) {
+        long time = AppListIndex.getInstance(mContext).getLastUpdateTime(pkgName);
+        return (time != 0 ? time : IconCache.getInstance(mContext).getLastUpdateTime(pkgName));
+    }
+
+    // prepare icon in size used by AppLauncher so that SystemUI can load it from disk cache
+    private void cacheLauncherIconAsync(final String value) {
+        final int sizePx = (int) TypedValue.applyDimension(TypedValue.COMPLEX_UNIT_DIP,
+                AppLauncher.DEFAULT_ICON_SIZE_DP, mResources.getDisplayMetrics());
+        AsyncTask.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Intent intent = Intent.parseUri(value, 0);
+                    if (intent.getIntExtra("mode", MODE_APP) != MODE_APP ||
+                            intent.getComponent() == null) return;
+                    ActivityInfo ai = mPackageManager.getActivityInfo(intent.getComponent(), 0);
+                    IconCache.getInstance(mContext).persistIcon(ai, sizePx,
+                            getLastUpdateTime(ai.packageName));
+                } catch (Exception e) {
+                    Log.e(TAG, "Error caching launcher icon: " + e.getMessage());
+                }
+            }
+        });
     }
 
     public void setValue(String value){
         if (!callChangeListener(value))
             return;
 
+        if (value != null) {
+            cacheLauncherIconAsync(value);
+        }
+
         mValue = value;
         mAppInfo = getAppInfoFromValue(value);
         setSummary(mAppInfo.name);
@@ -679,22 +667,15 @@ public class AppPickerPreference extends DialogPreference
             return null;
         }
 
-        protected String getKey() {
-            return getValue();
-        }
-
         @Override
         public Drawable getIconLeft() {
             if (mResolveInfo == null) return null;
 
             if (mAppIcon == null) {
-                final String key = getKey();
-                mAppIcon = sAppIconCache.get(key);
-                if (mAppIcon == null) {
-                    Bitmap bitmap = Utils.drawableToBitmap(mResolveInfo.loadIcon(mPackageManager));
-                    bitmap = Bitmap.createScaledBitmap(bitmap, mAppIconSizePx, mAppIconSizePx, false);
+                Bitmap bitmap = IconCache.getInstance(mContext).getIcon(mResolveInfo.activityInfo,
+                        mAppIconSizePx, getLastUpdateTime(mResolveInfo.activityInfo.packageName));
+                if (bitmap != null) {
                     mAppIcon = new BitmapDrawable(mResources, bitmap);
-                    sAppIconCache.put(key, mAppIcon);
                 }
             }
             return mAppIcon;
@@ -737,11 +718,6 @@ public class AppPickerPreference extends DialogPreference
             mShortcutCreatedListener = listener;
         }
 
-        @Override
-        protected String getKey() {
-            return mCreateShortcutIntent.toUri(0);
-        }
-
         @Override
         public Intent getCreateShortcutIntent() {
             return mCreateShortcutIntent;
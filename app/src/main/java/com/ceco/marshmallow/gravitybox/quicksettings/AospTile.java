@@ -98,7 +98,7 @@ public abstract class AospTile extends BaseTile implements QsEventListener {
         super(host, key, prefs, eventDistributor);
 
         mTile = tile;
-        XposedHelpers.setAdditionalInstanceField(tile, BaseTile.TILE_KEY_NAME, mKey);
+        mEventDistributor.bindObject(tile, this);
 
         createHooks();
         if (DEBUG) log(mKey + ": aosp tile wrapper created");
@@ -138,8 +138,7 @@ public abstract class AospTile extends BaseTile implements QsEventListener {
                     BaseTile.CLASS_TILE_STATE, Object.class, new XC_MethodHook() {
                 @Override
                 protected void afterHookedMethod(MethodHookParam param) throws Throwable {
-                    if (mKey.equals(XposedHelpers.getAdditionalInstanceField(
-                            param.thisObject, BaseTile.TILE_KEY_NAME))) {
+                    if (param.thisObject == mTile) {
                         handleUpdateState(param.args[0], param.args[1]);
                     }
                 }
@@ -149,16 +148,13 @@ public abstract class AospTile extends BaseTile implements QsEventListener {
                     mTile.getClass().getName(), cl, "handleClick", new XC_MethodHook() {
                 @Override
                 protected void beforeHookedMethod(MethodHookParam param) throws Throwable {
-                    if (mKey.equals(XposedHelpers.getAdditionalInstanceField(
-                            param.thisObject, BaseTile.TILE_KEY_NAME)) &&
-                            onBeforeHandleClick()) {
+                    if (param.thisObject == mTile && onBeforeHandleClick()) {
                         param.setResult(null);
                     }
                 }
                 @Override
                 protected void afterHookedMethod(MethodHookParam param) throws Throwable {
-                    if (mKey.equals(XposedHelpers.getAdditionalInstanceField(
-                            param.thisObject, BaseTile.TILE_KEY_NAME))) {
+                    if (param.thisObject == mTile) {
                         handleClick();
                     }
                 }
@@ -43,7 +43,6 @@ public abstract class BaseTile implements QsEventListener {
     protected static String TAG = "GB:BaseTile";
     protected static final boolean DEBUG = ModQsTiles.DEBUG;
 
-    public static final String TILE_KEY_NAME = "gbTileKey";
     public static final String CLASS_BASE_TILE = "com.android.systemui.qs.QSTile";
     public static final String CLASS_TILE_STATE = "com.android.systemui.qs.QSTile.State";
     public static final String CLASS_TILE_VIEW = "com.android.systemui.qs.QSTileView";
@@ -69,6 +68,7 @@ public abstract class BaseTile implements QsEventListener {
     protected boolean mHideOnChange;
     protected float mScalingFactor = 1f;
     protected KeyguardStateMonitor mKgMonitor;
+    private View mTileView;
 
     public BaseTile(Object host, String key, XSharedPreferences prefs,
             QsTileEventDistributor eventDistributor) throws Throwable {
@@ -172,11 +172,16 @@ public abstract class BaseTile implements QsEventListener {
         mContext = null;
         mGbContext = null;
         mKgMonitor = null;
+        mTileView = null;
     }
 
     @Override
     public void onCreateTileView(View tileView) throws Throwable {
-        XposedHelpers.setAdditionalInstanceField(tileView, TILE_KEY_NAME, mKey);
+        if (mTileView != tileView) {
+            mEventDistributor.unbindObject(mTileView, this);
+            mTileView = tileView;
+        }
+        mEventDistributor.bindObject(tileView, this);
 
         mScalingFactor = QsPanel.getScalingFactor(Integer.valueOf(mPrefs.getString(
                 GravityBoxSettings.PREF_KEY_QUICK_SETTINGS_TILES_PER_ROW, "0")),
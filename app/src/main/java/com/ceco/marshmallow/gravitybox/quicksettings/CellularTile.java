@@ -297,8 +297,7 @@ public class CellularTile extends AospTile {
                     "createTileView", Context.class, new XC_MethodHook() {
                 @Override
                 protected void afterHookedMethod(MethodHookParam param) throws Throwable {
-                    if (mKey.equals(XposedHelpers.getAdditionalInstanceField(
-                            param.thisObject, BaseTile.TILE_KEY_NAME))) {
+                    if (param.thisObject == mTile) {
                         onCreateTileView((View)param.getResult());
                     }
                 }
@@ -20,6 +20,7 @@ import com.ceco.marshmallow.gravitybox.R;
 
 import de.robv.android.xposed.XSharedPreferences;
 import android.content.Context;
+import android.graphics.drawable.Drawable;
 import android.hardware.Sensor;
 import android.hardware.SensorEvent;
 import android.hardware.SensorEventListener;
@@ -31,17 +32,32 @@ import android.widget.ImageView;
 
 public class CompassTile extends QsTile implements SensorEventListener {
     private final static float ALPHA = 0.97f;
+    // tile is refreshed only when needle is off by at least this angle
+    private final static float MIN_ROTATION_DELTA = 1f;
 
     private boolean mActive = false;
-    private Float mNewDegree;
+    private boolean mHasDegree;
+    private float mNewDegree;
+    private int mShownDegree = -1;
 
     private SensorManager mSensorManager;
+    private Sensor mRotationVectorSensor;
     private Sensor mAccelerationSensor;
     private Sensor mGeomagneticFieldSensor;
     private WindowManager mWindowManager;
 
-    private float[] mAcceleration;
-    private float[] mGeomagnetic;
+    // buffers reused by all sensor samples
+    private final float[] mAcceleration = new float[3];
+    private final float[] mGeomagnetic = new float[3];
+    private final float[] mRotationVector = new float[4];
+    private final float[] mRotationMatrix = new float[9];
+    private final float[] mOrientation = new float[3];
+    private boolean mHasAcceleration;
+    private boolean mHasGeomagnetic;
+
+    private String[] mCardinalDirections;
+    private final String[] mLabels = new String[360];
+    private Drawable mIconOn;
 
     private ImageView mImage;
     private boolean mListeningSensors;
@@ -53,8 +69,12 @@ public class CompassTile extends QsTile implements SensorEventListener {
         super(host, key, prefs, eventDistributor);
 
         mSensorManager = (SensorManager) mContext.getSystemService(Context.SENSOR_SERVICE);
-        mAccelerationSensor = mSensorManager.getDefaultSensor(Sensor.TYPE_ACCELEROMETER);
-        mGeomagneticFieldSensor = mSensorManager.getDefaultSensor(Sensor.TYPE_MAGNETIC_FIELD);
+        // single fused sensor is preferred over accelerometer and magnetometer pair
+        mRotationVectorSensor = mSensorManager.getDefaultSensor(Sensor.TYPE_ROTATION_VECTOR);
+        if (mRotationVectorSensor == null) {
+            mAccelerationSensor = mSensorManager.getDefaultSensor(Sensor.TYPE_ACCELEROMETER);
+            mGeomagneticFieldSensor = mSensorManager.getDefaultSensor(Sensor.TYPE_MAGNETIC_FIELD);
+        }
         mWindowManager = (WindowManager) mContext.getSystemService(Context.WINDOW_SERVICE);
     }
 
@@ -63,10 +83,12 @@ public class CompassTile extends QsTile implements SensorEventListener {
         super.handleDestroy();
         setListeningSensors(false);
         mSensorManager = null;
+        mRotationVectorSensor = null;
         mAccelerationSensor = null;
         mGeomagneticFieldSensor = null;
         mWindowManager = null;
         mImage = null;
+        mIconOn = null;
     }
 
     @Override
@@ -95,10 +117,19 @@ public class CompassTile extends QsTile implements SensorEventListener {
         if (mListeningSensors) {
             mCount = 10;
             mUpdatePending = false;
-            mSensorManager.registerListener(
-                    this, mAccelerationSensor, SensorManager.SENSOR_DELAY_GAME);
-            mSensorManager.registerListener(
-                    this, mGeomagneticFieldSensor, SensorManager.SENSOR_DELAY_GAME);
+            mHasDegree = false;
+            mShownDegree = -1;
+            mHasAcceleration = false;
+            mHasGeomagnetic = false;
+            if (mRotationVectorSensor != null) {
+                mSensorManager.registerListener(
+                        this, mRotationVectorSensor, SensorManager.SENSOR_DELAY_GAME);
+            } else {
+                mSensorManager.registerListener(
+                        this, mAccelerationSensor, SensorManager.SENSOR_DELAY_GAME);
+                mSensorManager.registerListener(
+                        this, mGeomagneticFieldSensor, SensorManager.SENSOR_DELAY_GAME);
+            }
         } else {
             mSensorManager.unregisterListener(this);
         }
@@ -108,14 +139,15 @@ public class CompassTile extends QsTile implements SensorEventListener {
     public void handleUpdateState(Object state, Object arg) {
         mState.visible = true;
         if (mActive) {
-            mState.icon = mGbContext.getDrawable(R.drawable.ic_qs_compass_on);
-            if (mNewDegree != null) {
-                mState.label = formatValueWithCardinalDirection(mNewDegree);
-
-                float target = getBaseDegree() - mNewDegree;
-                float relative = target - mImage.getRotation();
-                if (relative > 180) relative -= 360;
+            if (mIconOn == null) {
+                mIconOn = mGbContext.getDrawable(R.drawable.ic_qs_compass_on);
+            }
+            mState.icon = mIconOn;
+            if (mHasDegree) {
+                mShownDegree = Math.round(mNewDegree) % 360;
+                mState.label = getLabel(mShownDegree);
 
+                float relative = getRelativeRotation();
                 mImage.setRotation(mImage.getRotation() + relative / 2);
             } else {
                 mState.label = mGbContext.getString(R.string.quick_settings_compass_init);
@@ -150,37 +182,48 @@ public class CompassTile extends QsTile implements SensorEventListener {
         }
     }
 
-    private String formatValueWithCardinalDirection(float degree) {
-        int cardinalDirectionIndex = (int) (Math.floor(((degree - 22.5) % 360) / 45) + 1) % 8;
-        String[] cardinalDirections = mGbContext.getResources().getStringArray(
-                R.array.cardinal_directions);
+    // shortest rotation of needle towards current heading
+    private float getRelativeRotation() {
+        float relative = (getBaseDegree() - mNewDegree - mImage.getRotation()) % 360;
+        if (relative > 180) relative -= 360;
+        else if (relative < -180) relative += 360;
+        return relative;
+    }
 
-        return mGbContext.getString(R.string.quick_settings_compass_value, degree,
-                cardinalDirections[cardinalDirectionIndex]);
+    private String getLabel(int degree) {
+        String label = mLabels[degree];
+        if (label == null) {
+            if (mCardinalDirections == null) {
+                mCardinalDirections = mGbContext.getResources().getStringArray(
+                        R.array.cardinal_directions);
+            }
+            int cardinalDirectionIndex = (int) (Math.floor(((degree - 22.5) % 360) / 45) + 1) % 8;
+            label = mGbContext.getString(R.string.quick_settings_compass_value, (float) degree,
+                    mCardinalDirections[cardinalDirectionIndex]);
+            mLabels[degree] = label;
+        }
+        return label;
     }
 
     @Override
     public void onSensorChanged(SensorEvent event) {
-        float[] values;
-        if (event.sensor.getType() == Sensor.TYPE_ACCELEROMETER) {
-            if (mAcceleration == null) {
-                mAcceleration = event.values.clone();
+        final int type = event.sensor.getType();
+        if (type == Sensor.TYPE_ROTATION_VECTOR) {
+            // some devices report more values than getRotationMatrixFromVector accepts
+            for (int i = 0; i < mRotationVector.length; i++) {
+                mRotationVector[i] = i < event.values.length ? event.values[i] : 0;
             }
-            values = mAcceleration;
+        } else if (type == Sensor.TYPE_ACCELEROMETER) {
+            lowPass(event.values, mAcceleration, mHasAcceleration);
+            mHasAcceleration = true;
         } else {
             // Magnetic field sensor
-            if (mGeomagnetic == null) {
-                mGeomagnetic = event.values.clone();
-            }
-            values = mGeomagnetic;
+            lowPass(event.values, mGeomagnetic, mHasGeomagnetic);
+            mHasGeomagnetic = true;
         }
 
-        for (int i = 0; i < 3; i++) {
-            values[i] = ALPHA * values[i] + (1 - ALPHA) * event.values[i];
-        }
-
-        if (!mActive || !mListeningSensors || mUpdatePending ||
-                mAcceleration == null || mGeomagnetic == null) {
+        if (!mActive || !mListeningSensors || mUpdatePending || mImage == null ||
+                (type != Sensor.TYPE_ROTATION_VECTOR && (!mHasAcceleration || !mHasGeomagnetic))) {
             // Nothing to do at this moment
             return;
         }
@@ -190,25 +233,37 @@ public class CompassTile extends QsTile implements SensorEventListener {
         }
 
         mCount = 0;
-        float R[] = new float[9];
-        float I[] = new float[9];
-        if (!SensorManager.getRotationMatrix(R, I, mAcceleration, mGeomagnetic)) {
+        if (type == Sensor.TYPE_ROTATION_VECTOR) {
+            SensorManager.getRotationMatrixFromVector(mRotationMatrix, mRotationVector);
+        } else if (!SensorManager.getRotationMatrix(mRotationMatrix, null, mAcceleration, mGeomagnetic)) {
             // Rotation matrix couldn't be calculated
             return;
         }
 
         // Get the current orientation
-        float[] orientation = new float[3];
-        SensorManager.getOrientation(R, orientation);
+        SensorManager.getOrientation(mRotationMatrix, mOrientation);
 
         // Convert azimuth to degrees
-        mNewDegree = Float.valueOf((float) Math.toDegrees(orientation[0]));
-        mNewDegree = (mNewDegree + 360) % 360;
+        mNewDegree = ((float) Math.toDegrees(mOrientation[0]) + 360) % 360;
+        final boolean hadDegree = mHasDegree;
+        mHasDegree = true;
+
+        // Skip refresh unless label or needle visibly changes
+        if (hadDegree && Math.round(mNewDegree) % 360 == mShownDegree &&
+                Math.abs(getRelativeRotation()) < MIN_ROTATION_DELTA) {
+            return;
+        }
 
         mUpdatePending = true;
         refreshState();
     }
 
+    private static void lowPass(float[] input, float[] output, boolean initialized) {
+        for (int i = 0; i < 3; i++) {
+            output[i] = initialized ? ALPHA * output[i] + (1 - ALPHA) * input[i] : input[i];
+        }
+    }
+
     @Override
     public void onAccuracyChanged(Sensor sensor, int accuracy) {
         // noop
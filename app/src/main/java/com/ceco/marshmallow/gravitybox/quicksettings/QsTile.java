@@ -104,10 +104,10 @@ public abstract class QsTile extends BaseTile {
             QsTileEventDistributor eventDistributor) throws Throwable {
         super(host, key, prefs, eventDistributor);
 
-        mState = new State(mKey);
+        mState = new State(this);
 
         mTile = createTileObject();
-        XposedHelpers.setAdditionalInstanceField(mTile, TILE_KEY_NAME, mKey);
+        mEventDistributor.bindObject(mTile, this);
 
         if (sResourceIconClass == null) {
             sResourceIconClass = getResourceIconClass(mContext.getClassLoader());
@@ -167,10 +167,13 @@ public abstract class QsTile extends BaseTile {
         public boolean autoMirrorDrawable = true;
         public boolean booleanValue = true;
 
+        private QsTile mQsTile;
         private String mKey;
+        private Object mResourceIcon;
 
-        public State(String key) {
-            mKey = key;
+        public State(QsTile qsTile) {
+            mQsTile = qsTile;
+            mKey = qsTile.getKey();
         }
 
         public void applyTo(Object state) {
@@ -188,7 +191,11 @@ public abstract class QsTile extends BaseTile {
             try {
                 Object resourceIcon = XposedHelpers.callStaticMethod(
                         sResourceIconClass, "get", icon.hashCode());
-                XposedHelpers.setAdditionalInstanceField(resourceIcon, TILE_KEY_NAME, mKey);
+                if (mQsTile.mEventDistributor != null && resourceIcon != mResourceIcon) {
+                    mQsTile.mEventDistributor.unbindObject(mResourceIcon, mQsTile);
+                    mQsTile.mEventDistributor.bindObject(resourceIcon, mQsTile);
+                    mResourceIcon = resourceIcon;
+                }
                 if (DEBUG) log("getting resource icon for " + mKey);
                 return resourceIcon;
             } catch (Throwable t) {
@@ -2,6 +2,8 @@ package com.ceco.marshmallow.gravitybox.quicksettings;
 
 import java.lang.reflect.Constructor;
 import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
@@ -62,13 +64,16 @@ public class QsTileEventDistributor implements KeyguardStateMonitor.Listener {
     private Context mContext;
     private XSharedPreferences mPrefs;
     private Map<String,QsEventListener> mListeners;
+    // host tiles, tile views and resource icons bound to their listener by identity
+    private Map<Object,QsEventListener> mBoundListeners;
     private List<BroadcastSubReceiver> mBroadcastSubReceivers;
-    private String mCreateTileViewTileKey;
+    private QsEventListener mCreateTileViewListener;
 
     public QsTileEventDistributor(Object host, XSharedPreferences prefs) {
         mHost = host;
         mPrefs = prefs;
         mListeners = new LinkedHashMap<String,QsEventListener>();
+        mBoundListeners = new IdentityHashMap<Object,QsEventListener>();
         mBroadcastSubReceivers = new ArrayList<BroadcastSubReceiver>();
         SysUiManagers.KeyguardMonitor.registerListener(this);
 
@@ -159,8 +164,7 @@ public class QsTileEventDistributor implements KeyguardStateMonitor.Listener {
                     hostTileClassInfo.stateClassName, Object.class, new XC_MethodHook() {
                 @Override
                 protected void beforeHookedMethod(MethodHookParam param) throws Throwable {
-                    final QsEventListener l = mListeners.get(XposedHelpers
-                            .getAdditionalInstanceField(param.thisObject, BaseTile.TILE_KEY_NAME));
+                    final QsEventListener l = getBoundListener(param.thisObject);
                     if (l instanceof QsTile) {
                         l.handleUpdateState(param.args[0], param.args[1]);
                         param.setResult(null);
@@ -172,8 +176,7 @@ public class QsTileEventDistributor implements KeyguardStateMonitor.Listener {
                     new XC_MethodHook() {
                 @Override
                 protected void beforeHookedMethod(MethodHookParam param) throws Throwable {
-                    final QsEventListener l = mListeners.get(XposedHelpers
-                            .getAdditionalInstanceField(param.thisObject, BaseTile.TILE_KEY_NAME));
+                    final QsEventListener l = getBoundListener(param.thisObject);
                     if (l instanceof QsTile) {
                         l.handleClick();
                         param.setResult(null);
@@ -185,8 +188,7 @@ public class QsTileEventDistributor implements KeyguardStateMonitor.Listener {
                     boolean.class, new XC_MethodHook() {
                 @Override
                 protected void beforeHookedMethod(MethodHookParam param) throws Throwable {
-                    final QsEventListener l = mListeners.get(XposedHelpers
-                            .getAdditionalInstanceField(param.thisObject, BaseTile.TILE_KEY_NAME));
+                    final QsEventListener l = getBoundListener(param.thisObject);
                     if (l instanceof QsTile) {
                         l.setListening((boolean)param.args[0]);
                         param.setResult(null);
@@ -198,8 +200,7 @@ public class QsTileEventDistributor implements KeyguardStateMonitor.Listener {
                     Context.class, new XC_MethodHook() {
                 @Override
                 protected void beforeHookedMethod(MethodHookParam param) throws Throwable {
-                    final QsEventListener l = mListeners.get(XposedHelpers
-                            .getAdditionalInstanceField(param.thisObject, BaseTile.TILE_KEY_NAME));
+                    final QsEventListener l = getBoundListener(param.thisObject);
                     if (l instanceof QsTile) {
                         param.setResult(l.getResourceIconDrawable());
                     }
@@ -211,8 +212,7 @@ public class QsTileEventDistributor implements KeyguardStateMonitor.Listener {
                         "getInvisibleDrawable", Context.class, new XC_MethodHook() {
                     @Override
                     protected void beforeHookedMethod(MethodHookParam param) throws Throwable {
-                        final QsEventListener l = mListeners.get(XposedHelpers
-                                .getAdditionalInstanceField(param.thisObject, BaseTile.TILE_KEY_NAME));
+                        final QsEventListener l = getBoundListener(param.thisObject);
                         if (l instanceof QsTile) {
                             param.setResult(l.getResourceIconDrawable());
                         }
@@ -233,16 +233,15 @@ public class QsTileEventDistributor implements KeyguardStateMonitor.Listener {
                     Context.class, new XC_MethodHook() {
                 @Override
                 protected void beforeHookedMethod(MethodHookParam param) throws Throwable {
-                    mCreateTileViewTileKey = (String) XposedHelpers
-                            .getAdditionalInstanceField(param.thisObject, BaseTile.TILE_KEY_NAME);
+                    mCreateTileViewListener = getBoundListener(param.thisObject);
                 }
                 @Override
                 protected void afterHookedMethod(MethodHookParam param) throws Throwable {
-                    final QsEventListener l = mListeners.get(mCreateTileViewTileKey);
+                    final QsEventListener l = mCreateTileViewListener;
                     if (l != null) {
                         l.onCreateTileView((View)param.getResult());
                     }
-                    mCreateTileViewTileKey = null;
+                    mCreateTileViewListener = null;
                 }
             });
 
@@ -250,8 +249,7 @@ public class QsTileEventDistributor implements KeyguardStateMonitor.Listener {
                     new XC_MethodHook() {
                 @Override
                 protected void beforeHookedMethod(MethodHookParam param) throws Throwable {
-                    final QsEventListener l = mListeners.get(XposedHelpers
-                            .getAdditionalInstanceField(param.thisObject, BaseTile.TILE_KEY_NAME));
+                    final QsEventListener l = getBoundListener(param.thisObject);
                     if (l != null) {
                         Object detailAdapter = l.getDetailAdapter();
                         if (detailAdapter != null) {
@@ -265,8 +263,7 @@ public class QsTileEventDistributor implements KeyguardStateMonitor.Listener {
                     new XC_MethodHook() {
                 @Override
                 protected void afterHookedMethod(MethodHookParam param) throws Throwable {
-                    final QsEventListener l = mListeners.get(XposedHelpers
-                            .getAdditionalInstanceField(param.thisObject, BaseTile.TILE_KEY_NAME));
+                    final QsEventListener l = getBoundListener(param.thisObject);
                     if (l != null) {
                         l.handleDestroy();
                     }
@@ -277,8 +274,7 @@ public class QsTileEventDistributor implements KeyguardStateMonitor.Listener {
                     new XC_MethodHook() {
                 @Override
                 protected void beforeHookedMethod(MethodHookParam param) throws Throwable {
-                    final QsEventListener l = mListeners.get(XposedHelpers
-                            .getAdditionalInstanceField(param.thisObject, BaseTile.TILE_KEY_NAME));
+                    final QsEventListener l = getBoundListener(param.thisObject);
                     if (l != null && l.handleSecondaryClick()) {
                         param.setResult(null);
                     }
@@ -289,8 +285,7 @@ public class QsTileEventDistributor implements KeyguardStateMonitor.Listener {
             XC_MethodHook dtHook = new XC_MethodHook() {
                 @Override
                 protected void beforeHookedMethod(MethodHookParam param) throws Throwable {
-                    final QsEventListener l = mListeners.get(XposedHelpers
-                            .getAdditionalInstanceField(param.thisObject, BaseTile.TILE_KEY_NAME));
+                    final QsEventListener l = getBoundListener(param.thisObject);
                     if (l != null) {
                         param.setResult(l.supportsDualTargets());
                     }
@@ -312,8 +307,7 @@ public class QsTileEventDistributor implements KeyguardStateMonitor.Listener {
                     Configuration.class, new XC_MethodHook() {
                 @Override
                 protected void afterHookedMethod(MethodHookParam param) throws Throwable {
-                    final QsEventListener l = mListeners.get(XposedHelpers
-                            .getAdditionalInstanceField(param.thisObject, BaseTile.TILE_KEY_NAME));
+                    final QsEventListener l = getBoundListener(param.thisObject);
                     if (l != null) {
                         l.onViewConfigurationChanged((View)param.thisObject,
                                 (Configuration)param.args[0]);
@@ -326,8 +320,7 @@ public class QsTileEventDistributor implements KeyguardStateMonitor.Listener {
                         new XC_MethodHook() {
                     @Override
                     protected void afterHookedMethod(MethodHookParam param) throws Throwable {
-                        final QsEventListener l = mListeners.get(XposedHelpers
-                                .getAdditionalInstanceField(param.thisObject, BaseTile.TILE_KEY_NAME));
+                        final QsEventListener l = getBoundListener(param.thisObject);
                         if (l != null) {
                             l.onRecreateLabel((View)param.thisObject);
                         }
@@ -338,7 +331,7 @@ public class QsTileEventDistributor implements KeyguardStateMonitor.Listener {
                         new XC_MethodHook() {
                     @Override
                     protected void beforeHookedMethod(MethodHookParam param) throws Throwable {
-                        final QsEventListener l = mListeners.get(mCreateTileViewTileKey);
+                        final QsEventListener l = mCreateTileViewListener;
                         if (l != null) {
                             View icon = l.onCreateIcon();
                             if (icon != null) {
@@ -352,8 +345,7 @@ public class QsTileEventDistributor implements KeyguardStateMonitor.Listener {
             XC_MethodHook sdHook = new XC_MethodHook() {
                 @Override
                 protected void afterHookedMethod(MethodHookParam param) throws Throwable {
-                    final QsEventListener l = mListeners.get(XposedHelpers
-                            .getAdditionalInstanceField(param.thisObject, BaseTile.TILE_KEY_NAME));
+                    final QsEventListener l = getBoundListener(param.thisObject);
                     if (l != null) {
                         l.onDualModeSet((View)param.thisObject, (boolean)param.args[0]);
                     }
@@ -376,8 +368,7 @@ public class QsTileEventDistributor implements KeyguardStateMonitor.Listener {
             XC_MethodHook longClickHook = new XC_MethodHook() {
                 @Override
                 protected void beforeHookedMethod(MethodHookParam param) throws Throwable {
-                    final QsEventListener l = mListeners.get(XposedHelpers
-                            .getAdditionalInstanceField(param.thisObject, BaseTile.TILE_KEY_NAME));
+                    final QsEventListener l = getBoundListener(param.thisObject);
                     if (l != null && l.handleLongClick()) {
                         param.setResult(null);
                     }
@@ -414,6 +405,32 @@ public class QsTileEventDistributor implements KeyguardStateMonitor.Listener {
         if (mListeners.containsKey(key)) {
             mListeners.remove(key);
         }
+
+        Iterator<QsEventListener> it = mBoundListeners.values().iterator();
+        while (it.hasNext()) {
+            if (it.next() == listener) {
+                it.remove();
+            }
+        }
+    }
+
+    // binds host object to listener so that hooks can find it with a single identity lookup
+    public synchronized void bindObject(Object hostObject, QsEventListener listener) {
+        if (hostObject == null || listener == null)
+            throw new IllegalArgumentException("bindObject: object and listener cannot be null");
+
+        mBoundListeners.put(hostObject, listener);
+    }
+
+    // drops binding of host object replaced by a new one (e.g. recreated tile view)
+    public synchronized void unbindObject(Object hostObject, QsEventListener listener) {
+        if (hostObject != null && mBoundListeners.get(hostObject) == listener) {
+            mBoundListeners.remove(hostObject);
+        }
+    }
+
+    private synchronized QsEventListener getBoundListener(Object hostObject) {
+        return mBoundListeners.get(hostObject);
     }
 
     public synchronized void registerBroadcastSubReceiver(BroadcastSubReceiver receiver) {